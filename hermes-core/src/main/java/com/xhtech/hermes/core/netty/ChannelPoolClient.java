@@ -1,13 +1,26 @@
 package com.xhtech.hermes.core.netty;
 
-import com.xhtech.hermes.core.util.LoopChosser;
+import com.xhtech.hermes.core.gossip.gms.ApplicationState;
+import com.xhtech.hermes.core.gossip.gms.EndpointState;
+import com.xhtech.hermes.core.gossip.gms.VersionedValue;
+import com.xhtech.hermes.core.util.ConsistentHashRing;
+import com.xhtech.hermes.core.netty.NettyContext.Role;
 import com.xhtech.hermes.core.netty.address.ReadWriteAddress;
+import com.xhtech.hermes.core.netty.channel.PinnedChannelGroup;
 import com.xhtech.hermes.core.netty.channel.SerialChannelPromise;
+import com.xhtech.hermes.core.netty.handler.NettyHandler;
+import com.xhtech.hermes.core.netty.handler.SocketEventHandler;
+import com.xhtech.hermes.core.netty.proto.AbstractProto;
 import com.xhtech.hermes.core.netty.proto.Proto;
+import com.xhtech.hermes.core.netty.selector.EndpointSelector;
+import com.xhtech.hermes.core.netty.selector.RoundRobinSelector;
 import io.netty.bootstrap.Bootstrap;
 import io.netty.channel.Channel;
+import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInitializer;
 import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
 import io.netty.channel.pool.AbstractChannelPoolMap;
 import io.netty.channel.pool.ChannelPoolMap;
 import io.netty.channel.pool.FixedChannelPool;
@@ -20,11 +33,15 @@ import org.slf4j.LoggerFactory;
 import org.springframework.context.ApplicationContext;
 
 import java.net.InetSocketAddress;
-import java.util.ArrayList;
-import java.util.Iterator;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
-
-import static java.lang.Math.abs;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 public abstract class ChannelPoolClient extends NettyClient {
 
@@ -38,9 +55,19 @@ public abstract class ChannelPoolClient extends NettyClient {
 
     private AbstractChannelPoolMap<ReadWriteAddress, SimpleChannelPool> poolMap;
 
-    private List<RemoteEndpoint> remoteEndpoints = new ArrayList<>();
+    private final RemoteEndpointRegistry remoteEndpoints = new RemoteEndpointRegistry();
+
+    private volatile EndpointSelector endpointSelector = new RoundRobinSelector();
+
+    private volatile ConsistentHashRing<RemoteEndpoint> hashRing = ConsistentHashRing.empty();
+
+    private final Map<ReadWriteAddress, PinnedChannelGroup> pinnedChannelGroups = new ConcurrentHashMap<>();
+
+    private volatile boolean pinnedSend = false;
 
-    private LoopChosser<RemoteEndpoint> loopChosser = new LoopChosser();
+    private volatile NettyHandler pinnedHandler;
+
+    private EventLoopGroup eventLoopGroup;
 
     public ChannelPoolClient() {
     }
@@ -54,15 +81,58 @@ public abstract class ChannelPoolClient extends NettyClient {
         poolMap = new AbstractChannelPoolMap<ReadWriteAddress, SimpleChannelPool>() {
             @Override
             protected SimpleChannelPool newPool(ReadWriteAddress key) {
-                Bootstrap b = new Bootstrap();
-                b.group(NettyContext.get().getWorkerEventLoopGroup(ChannelPoolClient.this.getName()));
-                b.channel(getNettyContext().getChannelClass());
-                b.option(ChannelOption.TCP_NODELAY, true).option(ChannelOption.SO_KEEPALIVE, true).attr(KEY_REMOTE_ADDRESS, key);
-                return new FixedChannelPool(b.remoteAddress(key.getSocketAddress()), ChannelPoolClient.this, ChannelPoolClient.this.getConnections());
+                return new FixedChannelPool(newBootstrap(key), ChannelPoolClient.this, ChannelPoolClient.this.getConnections());
             }
         };
     }
 
+    protected Bootstrap newBootstrap(ReadWriteAddress key) {
+        Bootstrap b = new Bootstrap();
+        b.group(getEventLoopGroup());
+        b.channel(getNettyContext().getChannelClass());
+        b.option(ChannelOption.TCP_NODELAY, true).option(ChannelOption.SO_KEEPALIVE, true).attr(KEY_REMOTE_ADDRESS, key);
+        return b.remoteAddress(key.getSocketAddress());
+    }
+
+    /**
+     * 所有连接池共用NettyContext中客户端IO角色的线程组, destroy时释放
+     */
+    protected synchronized EventLoopGroup getEventLoopGroup() {
+        if (eventLoopGroup == null) {
+            eventLoopGroup = getNettyContext().acquire(Role.CLIENT_IO);
+        }
+
+        return eventLoopGroup;
+    }
+
+    /**
+     * 固定连接使用单独的handler, 连接建立和断开不经过accept/close, 不会移除连接池或触发重连, 断开后由PinnedChannelGroup按需重建
+     */
+    protected PinnedChannelGroup newPinnedChannelGroup(ReadWriteAddress key) {
+        return new PinnedChannelGroup(newBootstrap(key).handler(new ChannelInitializer<Channel>() {
+            @Override
+            protected void initChannel(Channel ch) {
+                ensureAfterPropertiesSet();
+                initPipeline(ch, getPinnedHandler());
+            }
+        }), getConnections());
+    }
+
+    private NettyHandler getPinnedHandler() {
+        NettyHandler pinnedHandler = this.pinnedHandler;
+
+        if (pinnedHandler == null) {
+            synchronized (this) {
+                if ((pinnedHandler = this.pinnedHandler) == null) {
+                    pinnedHandler = new NettyHandler(getDispatcher(), new PinnedEventHandler());
+                    this.pinnedHandler = pinnedHandler;
+                }
+            }
+        }
+
+        return pinnedHandler;
+    }
+
     @Override
     public void accept(ChannelHandlerContext ctx) {
         super.accept(ctx);
@@ -78,11 +148,11 @@ public abstract class ChannelPoolClient extends NettyClient {
         logger.info("Connection({}) established successfully with the server({})", remoteAddress.getStyleName(), ctx);
     }
 
-    public synchronized boolean isConnected(ReadWriteAddress address) {
+    public boolean isConnected(ReadWriteAddress address) {
         return poolMap.contains(address);
     }
 
-    public synchronized void connect(ReadWriteAddress address) {
+    public void connect(ReadWriteAddress address) {
         logger.info("Connecting to server --> {}:{}", address.getAddress(), address.getPort());
 
         doConnect(address);
@@ -95,6 +165,45 @@ public abstract class ChannelPoolClient extends NettyClient {
             poolMap.remove(remoteEndpoint.readAddress);
             poolMap.remove(remoteEndpoint.writeAddress);
         }
+
+        if (remoteEndpoint != null) {
+            closePinnedChannelGroup(remoteEndpoint.readAddress);
+            closePinnedChannelGroup(remoteEndpoint.writeAddress);
+        }
+    }
+
+    public PinnedChannelGroup getPinnedChannelGroup(ReadWriteAddress address) {
+        return pinnedChannelGroups.computeIfAbsent(address, this::newPinnedChannelGroup);
+    }
+
+    private void closePinnedChannelGroup(ReadWriteAddress address) {
+        PinnedChannelGroup group = pinnedChannelGroups.remove(address);
+
+        if (group != null) {
+            group.close();
+        }
+    }
+
+    public EndpointSelector getEndpointSelector() {
+        return endpointSelector;
+    }
+
+    /**
+     * sendAndRecv选择远端节点的策略, 默认轮询, 可选PowerOfTwoChoicesSelector、EwmaLatencySelector等按负载选择的策略
+     */
+    public void setEndpointSelector(EndpointSelector endpointSelector) {
+        this.endpointSelector = endpointSelector;
+    }
+
+    public boolean isPinnedSend() {
+        return pinnedSend;
+    }
+
+    /**
+     * 开启后send(只写不等待响应)不再经过连接池, 而是轮询每个地址上固定的getConnections()个长连接
+     */
+    public void setPinnedSend(boolean pinnedSend) {
+        this.pinnedSend = pinnedSend;
     }
 
     public int getConnections() {
@@ -118,17 +227,28 @@ public abstract class ChannelPoolClient extends NettyClient {
     }
 
     public void send(final String clientId, final Proto proto) {
-        int size = remoteEndpoints().size();
+        RemoteEndpoint remoteEndpoint = route(clientId);
 
-        if (size > 0) {
-            RemoteEndpoint remoteEndpoint = remoteEndpoints().get(abs(clientId.hashCode()) % size);
+        if (remoteEndpoint != null) {
             send(remoteEndpoint.writeAddress, proto);
         } else {
             logger.error("No server to send [clientId = {}, proto = {}]", clientId, proto);
         }
     }
 
+    /**
+     * 按clientId在一致性hash环上选择远端节点, 节点增减时只有约1/N的clientId会改变路由
+     */
+    public RemoteEndpoint route(String clientId) {
+        return hashRing.get(clientId);
+    }
+
     public void send(final ReadWriteAddress address, final Proto proto) {
+        if (pinnedSend) {
+            getPinnedChannelGroup(address).writeAndFlush(proto);
+            return;
+        }
+
         final SimpleChannelPool pool = getPool(address);
 
         pool.acquire().addListener((FutureListener<Channel>) fl -> {
@@ -143,13 +263,17 @@ public abstract class ChannelPoolClient extends NettyClient {
                         pool.release(ch);
                     }
                 }
+            } else {
+                AbstractProto.release(proto);
             }
         });
     }
 
     public <T> T sendAndRecv(final T t) {
-        if (remoteEndpoints.size() > 0) {
-            RemoteEndpoint remoteEndpoint = loopChosser.choose(remoteEndpoints);
+        RemoteEndpoint[] snapshot = remoteEndpoints.snapshot();
+
+        if (snapshot.length > 0) {
+            RemoteEndpoint remoteEndpoint = endpointSelector.select(snapshot);
             return sendAndRecv(remoteEndpoint.writeAddress, t);
         }
 
@@ -162,6 +286,9 @@ public abstract class ChannelPoolClient extends NettyClient {
 
     public <T> T sendAndRecv(final ReadWriteAddress address, final T t, long timeout) {
         SimpleChannelPool pool = getPool(address);
+        RemoteEndpoint remoteEndpoint = getRemoteEndpoint(address);
+        long start = remoteEndpoint != null ? remoteEndpoint.begin() : 0;
+        T response = null;
 
         try {
             Future<Channel> future = pool.acquire().sync();
@@ -171,17 +298,88 @@ public abstract class ChannelPoolClient extends NettyClient {
                 try {
                     ch = future.getNow();
                     SerialChannelPromise<T> promise = new SerialChannelPromise(ch, ch.eventLoop());
-                    return promise.writeAndFlush(t, timeout);
+                    response = promise.writeAndFlush(t, timeout);
                 } finally {
                     pool.release(ch);
                 }
             }
 
-            return null;
+            return response;
         } catch (InterruptedException e) {
             logger.error(e.getMessage(), e);
             return null;
+        } finally {
+            if (remoteEndpoint != null) {
+                remoteEndpoint.end(start, response != null, timeout);
+            }
+        }
+    }
+
+    public <T> CompletableFuture<T> sendAndRecvAsync(final T t) {
+        RemoteEndpoint[] snapshot = remoteEndpoints.snapshot();
+
+        if (snapshot.length > 0) {
+            RemoteEndpoint remoteEndpoint = endpointSelector.select(snapshot);
+            return sendAndRecvAsync(remoteEndpoint.writeAddress, t);
+        }
+
+        CompletableFuture<T> future = new CompletableFuture<>();
+        future.completeExceptionally(new IllegalStateException("No server to send"));
+        return future;
+    }
+
+    public <T> CompletableFuture<T> sendAndRecvAsync(final ReadWriteAddress address, final T t) {
+        return sendAndRecvAsync(address, t, SerialChannelPromise.DEFAULT_RECV_TIMEOUT);
+    }
+
+    /**
+     * 非阻塞的sendAndRecv, 连接的获取、写出、响应和归还都通过回调完成, 不占用调用线程
+     * 多路复用的请求在写出后即归还连接, 否则在收到响应(或超时)后归还
+     */
+    public <T> CompletableFuture<T> sendAndRecvAsync(final ReadWriteAddress address, final T t, long timeout) {
+        final SimpleChannelPool pool = getPool(address);
+        final CompletableFuture<T> future = new CompletableFuture<>();
+        final RemoteEndpoint remoteEndpoint = getRemoteEndpoint(address);
+
+        if (remoteEndpoint != null) {
+            long start = remoteEndpoint.begin();
+            future.whenComplete((v, e) -> remoteEndpoint.end(start, e == null, timeout));
         }
+
+        pool.acquire().addListener((FutureListener<Channel>) fl -> {
+            if (!fl.isSuccess()) {
+                future.completeExceptionally(fl.cause());
+                return;
+            }
+
+            Channel ch = fl.getNow();
+            SerialChannelPromise<T> promise = new SerialChannelPromise(ch, ch.eventLoop());
+            CompletableFuture<T> response;
+
+            try {
+                response = promise.writeAndFlushAsync(t, timeout);
+            } catch (Throwable e) {
+                pool.release(ch);
+                future.completeExceptionally(e);
+                return;
+            }
+
+            if (promise.isMultiplexed()) {
+                promise.addListener((ChannelFutureListener) f -> pool.release(ch));
+            } else {
+                response.whenComplete((v, e) -> pool.release(ch));
+            }
+
+            response.whenComplete((v, e) -> {
+                if (e != null) {
+                    future.completeExceptionally(e);
+                } else {
+                    future.complete(v);
+                }
+            });
+        });
+
+        return future;
     }
 
     @Override
@@ -190,7 +388,7 @@ public abstract class ChannelPoolClient extends NettyClient {
 
         ReadWriteAddress readWriteAddress = ctx.channel().attr(KEY_REMOTE_ADDRESS).get();
         InetSocketAddress socketAddress = (InetSocketAddress) ctx.channel().remoteAddress();
-        RemoteEndpoint remoteEndpoint = getRemoteEndpoint(socketAddress.getAddress().getHostAddress(), socketAddress.getPort());
+        RemoteEndpoint remoteEndpoint = remoteEndpoints.get(socketAddress);
 
         poolMap.remove(readWriteAddress);
 
@@ -209,6 +407,15 @@ public abstract class ChannelPoolClient extends NettyClient {
 
     public void destroy() {
         poolMap.close();
+        pinnedChannelGroups.values().forEach(PinnedChannelGroup::close);
+        pinnedChannelGroups.clear();
+
+        synchronized (this) {
+            if (eventLoopGroup != null) {
+                eventLoopGroup = null;
+                getNettyContext().release(Role.CLIENT_IO);
+            }
+        }
     }
 
     public String getName() {
@@ -221,49 +428,120 @@ public abstract class ChannelPoolClient extends NettyClient {
         if (remoteEndpoint != null) {
             return remoteEndpoint;
         } else {
-            remoteEndpoint = new RemoteEndpoint(host, port);
-            remoteEndpoints.add(remoteEndpoint);
-            connect(remoteEndpoint.writeAddress);
+            return addRemoteEndpoint(new RemoteEndpoint(host, port));
+        }
+    }
+
+    public synchronized RemoteEndpoint addRemoteEndpoint(String host, int port, int weight) {
+        RemoteEndpoint remoteEndpoint = getRemoteEndpoint(host, port);
+
+        if (remoteEndpoint != null) {
+            setWeight(remoteEndpoint, weight);
             return remoteEndpoint;
+        } else {
+            remoteEndpoint = new RemoteEndpoint(host, port);
+            remoteEndpoint.weight = weight;
+            return addRemoteEndpoint(remoteEndpoint);
+        }
+    }
+
+    private RemoteEndpoint addRemoteEndpoint(RemoteEndpoint remoteEndpoint) {
+        RemoteEndpoint exist = remoteEndpoints.putIfAbsent(remoteEndpoint);
+
+        if (exist != null) {
+            return exist;
+        }
+
+        rebuildHashRing();
+        connect(remoteEndpoint.writeAddress);
+        return remoteEndpoint;
+    }
+
+    public synchronized void setWeight(String host, int port, int weight) {
+        RemoteEndpoint remoteEndpoint = getRemoteEndpoint(host, port);
+
+        if (remoteEndpoint != null) {
+            setWeight(remoteEndpoint, weight);
+        }
+    }
+
+    private void setWeight(RemoteEndpoint remoteEndpoint, int weight) {
+        if (remoteEndpoint.weight != weight) {
+            remoteEndpoint.weight = weight;
+            rebuildHashRing();
+        }
+    }
+
+    private void rebuildHashRing() {
+        hashRing = ConsistentHashRing.of(Arrays.asList(remoteEndpoints.snapshot()), RemoteEndpoint::getWeight, RemoteEndpoint::toString);
+    }
+
+    /**
+     * 从gossip的ApplicationState.WEIGHT中读取节点权重
+     */
+    public static int weight(EndpointState state) {
+        VersionedValue value = state != null ? state.getApplicationState(ApplicationState.WEIGHT) : null;
+
+        try {
+            return value != null ? Integer.parseInt(value.value) : RemoteEndpoint.DEFAULT_WEIGHT;
+        } catch (NumberFormatException e) {
+            return RemoteEndpoint.DEFAULT_WEIGHT;
         }
     }
 
     public synchronized RemoteEndpoint removeRemoteEndpoint(String host, int port) {
-        for (Iterator<RemoteEndpoint> iterator = remoteEndpoints.iterator(); iterator.hasNext(); ) {
-            RemoteEndpoint remoteEndpoint = iterator.next();
+        RemoteEndpoint remoteEndpoint = remoteEndpoints.remove(new InetSocketAddress(host, port));
 
-            if (remoteEndpoint.host.equals(host) && remoteEndpoint.port == port) {
-                iterator.remove();
-                disconnect(remoteEndpoint);
-                return remoteEndpoint;
-            }
+        if (remoteEndpoint != null) {
+            rebuildHashRing();
+            disconnect(remoteEndpoint);
         }
 
-        return null;
+        return remoteEndpoint;
     }
 
     public RemoteEndpoint getRemoteEndpoint(ReadWriteAddress address) {
-        return getRemoteEndpoint(address.getAddress().getHostAddress(), address.getPort());
+        return remoteEndpoints.get(address.getSocketAddress());
     }
 
     public RemoteEndpoint getRemoteEndpoint(String host, int port) {
-        for (Iterator<RemoteEndpoint> iterator = remoteEndpoints.iterator(); iterator.hasNext(); ) {
-            RemoteEndpoint remoteEndpoint = iterator.next();
+        return remoteEndpoints.get(new InetSocketAddress(host, port));
+    }
 
-            if (remoteEndpoint.host.equals(host) && remoteEndpoint.port == port) {
-                return remoteEndpoint;
-            }
+    /**
+     * 当前远端节点的只读快照
+     */
+    public List<RemoteEndpoint> remoteEndpoints() {
+        return Collections.unmodifiableList(Arrays.asList(remoteEndpoints.snapshot()));
+    }
+
+    /**
+     * 固定连接的连接事件: 心跳与连接池的连接相同, 建立和断开只记录日志
+     */
+    private class PinnedEventHandler implements SocketEventHandler {
+
+        @Override
+        public void accept(ChannelHandlerContext ctx) {
+            logger.info("Pinned connection established with the server({})", ctx);
         }
 
-        return null;
-    }
+        @Override
+        public void heartbeat(ChannelHandlerContext ctx) {
+            ChannelPoolClient.this.heartbeat(ctx);
+        }
 
-    public List<RemoteEndpoint> remoteEndpoints() {
-        return remoteEndpoints;
+        @Override
+        public void close(ChannelHandlerContext ctx) {
+            logger.info("Lost pinned connection to server({})", ctx);
+        }
     }
 
     public static class RemoteEndpoint {
 
+        public static final int DEFAULT_WEIGHT = 1;
+
+        public static final double EWMA_ALPHA = 0.2D;
+
         String host;
 
         int port;
@@ -274,6 +552,14 @@ public abstract class ChannelPoolClient extends NettyClient {
 
         volatile boolean connected = false;
 
+        volatile int weight = DEFAULT_WEIGHT;
+
+        /* 等待响应的请求数 */
+        final AtomicInteger outstanding = new AtomicInteger();
+
+        /* 请求延迟(纳秒)的指数加权平均, 以double的bit保存, CAS更新, 0表示还没有样本 */
+        final AtomicLong latency = new AtomicLong();
+
         public RemoteEndpoint(String host, int port) {
             this.host = host;
             this.port = port;
@@ -300,6 +586,46 @@ public abstract class ChannelPoolClient extends NettyClient {
             return connected;
         }
 
+        public int getWeight() {
+            return weight;
+        }
+
+        public long begin() {
+            outstanding.incrementAndGet();
+            return System.nanoTime();
+        }
+
+        /**
+         * 请求结束, 失败的请求(超时、连接失败等)按不小于timeoutMillis的延迟计入, 避免快速失败的节点显得更快
+         */
+        public void end(long start, boolean success, long timeoutMillis) {
+            outstanding.decrementAndGet();
+
+            double sample = System.nanoTime() - start;
+            if (!success) {
+                sample = Math.max(sample, TimeUnit.MILLISECONDS.toNanos(timeoutMillis));
+            }
+
+            long prev, next;
+
+            do {
+                prev = latency.get();
+                double value = Double.longBitsToDouble(prev);
+                next = Double.doubleToRawLongBits(prev == 0 ? sample : value + EWMA_ALPHA * (sample - value));
+            } while (!latency.compareAndSet(prev, next));
+        }
+
+        public int getOutstanding() {
+            return outstanding.get();
+        }
+
+        /**
+         * 延迟的指数加权平均(纳秒), 没有样本时为0
+         */
+        public double getLatency() {
+            return Double.longBitsToDouble(latency.get());
+        }
+
         @Override
         public String toString() {
             return host + ":" + port;
@@ -1,5 +1,6 @@
 package com.xhtech.hermes.core.netty;
 
+import com.xhtech.hermes.core.netty.channel.EventLoopWatchdog;
 import io.netty.channel.Channel;
 import io.netty.channel.EventLoopGroup;
 import io.netty.channel.ServerChannel;
@@ -10,6 +11,12 @@ import io.netty.channel.socket.nio.NioDatagramChannel;
 import io.netty.channel.socket.nio.NioServerSocketChannel;
 import io.netty.channel.socket.nio.NioSocketChannel;
 import io.netty.util.concurrent.DefaultThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ThreadFactory;
 
 import static com.xhtech.hermes.core.schedule.TaskQueueScheduler.DEFAULT_EVENT_LOOP_THREADS;
 
@@ -18,16 +25,45 @@ import static com.xhtech.hermes.core.schedule.TaskQueueScheduler.DEFAULT_EVENT_L
  * 根据操作系统的网络模型支持选择socket文件事件
  * linux2.6以上使用epoll
  * 其他操作系统使用selector
+ * 按角色(acceptor、服务端IO、客户端IO)维护进程内共享的EventLoopGroup, 引用计数归零时关闭
  */
 public class NettyContext {
 
+    private static final Logger logger = LoggerFactory.getLogger(NettyContext.class);
+
     private static final NettyContext INSTANCE = new NettyContext();
 
+    public enum Role {
+        ACCEPTOR("hermes-acceptor", 1),
+        SERVER_IO("hermes-server-io", DEFAULT_EVENT_LOOP_THREADS),
+        CLIENT_IO("hermes-client-io", Runtime.getRuntime().availableProcessors());
+
+        private final String threadName;
+
+        private final int defaultThreads;
+
+        Role(String threadName, int defaultThreads) {
+            this.threadName = threadName;
+            this.defaultThreads = defaultThreads;
+        }
+
+        public String getThreadName() {
+            return threadName;
+        }
+
+        public int getDefaultThreads() {
+            return defaultThreads;
+        }
+    }
+
+    private final Map<Role, Integer> threads = new EnumMap<>(Role.class);
+
+    private final Map<Role, SharedEventLoopGroup> sharedGroups = new EnumMap<>(Role.class);
+
     private final Class<? extends ServerChannel> serverChannelClass;
     private final Class<? extends Channel> channelClass;
     private final Class<? extends DatagramChannel> datagramChannelClass;
 
-
     private NettyContext() {
         super();
 
@@ -50,10 +86,109 @@ public class NettyContext {
         return channelClass;
     }
 
+    /**
+     * 获取角色对应的共享线程组并增加引用计数, 使用完后必须调用release(role), 不能直接shutdown
+     */
+    public synchronized EventLoopGroup acquire(Role role) {
+        SharedEventLoopGroup shared = sharedGroups.get(role);
+
+        if (shared == null) {
+            int n = getThreads(role);
+            shared = new SharedEventLoopGroup(newEventLoopGroup(n, new DefaultThreadFactory(role.getThreadName(), true)), n);
+            sharedGroups.put(role, shared);
+
+            /* acceptor只负责accept, 只检测IO线程 */
+            if (role != Role.ACCEPTOR) {
+                EventLoopWatchdog.get().watch(shared.group);
+            }
+
+            logger.info("Allocated shared event loop group [role = {}, threads = {}]", role, n);
+        }
+
+        shared.refCnt++;
+        return shared.group;
+    }
+
+    /**
+     * 创建角色对应的独立线程组, 不参与共享和引用计数, 调用方负责shutdownGracefully
+     */
+    public EventLoopGroup create(Role role, int n) {
+        return create(role, n, role.getThreadName());
+    }
+
+    /**
+     * 同create(role, n), 线程以threadName命名
+     */
+    public EventLoopGroup create(Role role, int n, String threadName) {
+        logger.info("Allocated exclusive event loop group [role = {}, threads = {}, name = {}]", role, n, threadName);
+        return newEventLoopGroup(n, new DefaultThreadFactory(threadName, true));
+    }
+
+    /**
+     * 减少引用计数, 归零时关闭线程组, 之后的acquire会重新创建
+     */
+    public synchronized void release(Role role) {
+        SharedEventLoopGroup shared = sharedGroups.get(role);
+
+        if (shared != null && --shared.refCnt <= 0) {
+            sharedGroups.remove(role);
+            EventLoopWatchdog.get().unwatch(shared.group);
+            shared.group.shutdownGracefully();
+            logger.info("Released shared event loop group [role = {}, threads = {}]", role, shared.threads);
+        }
+    }
+
+    public synchronized int getThreads(Role role) {
+        Integer n = threads.get(role);
+        return n != null ? n : role.getDefaultThreads();
+    }
+
+    /**
+     * 设置角色的线程数, 只对之后新创建的线程组生效
+     */
+    public synchronized void setThreads(Role role, int n) {
+        if (n <= 0) {
+            threads.remove(role);
+        } else {
+            threads.put(role, n);
+        }
+    }
+
+    public synchronized int getReferenceCount(Role role) {
+        SharedEventLoopGroup shared = sharedGroups.get(role);
+        return shared != null ? shared.refCnt : 0;
+    }
+
+    /**
+     * 已分配的共享线程组: 角色、线程数和引用计数
+     */
+    public synchronized String report() {
+        StringBuilder sb = new StringBuilder();
+        int total = 0;
+
+        for (Map.Entry<Role, SharedEventLoopGroup> entry : sharedGroups.entrySet()) {
+            SharedEventLoopGroup shared = entry.getValue();
+            sb.append(entry.getKey()).append(": threads = ").append(shared.threads).append(", refCnt = ").append(shared.refCnt).append(System.lineSeparator());
+            total += shared.threads;
+        }
+
+        return sb.append("total threads = ").append(total).toString();
+    }
+
+    private EventLoopGroup newEventLoopGroup(int n, ThreadFactory threadFactory) {
+        return Epoll.isAvailable() ? new EpollEventLoopGroup(n, threadFactory) : new NioEventLoopGroup(n, threadFactory);
+    }
+
     public EventLoopGroup getBossEventLoopGroup() {
         return getBossEventLoopGroup(null);
     }
 
+    /**
+     * 创建独立的线程组, 调用方负责关闭
+     *
+     * @deprecated 使用共享线程组acquire(Role.ACCEPTOR)
+     */
+    @Deprecated
     public EventLoopGroup getBossEventLoopGroup(String groupName) {
         if (groupName == null) {
             return Epoll.isAvailable() ? new EpollEventLoopGroup() : new NioEventLoopGroup();
@@ -66,6 +201,12 @@ public class NettyContext {
         return getWorkerEventLoopGroup(null);
     }
 
+    /**
+     * 创建独立的线程组, 调用方负责关闭
+     *
+     * @deprecated 使用共享线程组acquire(Role.SERVER_IO)或acquire(Role.CLIENT_IO)
+     */
+    @Deprecated
     public EventLoopGroup getWorkerEventLoopGroup(String groupName) {
         if (groupName == null) {
             return Epoll.isAvailable() ? new EpollEventLoopGroup() : new NioEventLoopGroup();
@@ -81,4 +222,18 @@ public class NettyContext {
     public static final NettyContext get() {
         return INSTANCE;
     }
+
+    private static class SharedEventLoopGroup {
+
+        final EventLoopGroup group;
+
+        final int threads;
+
+        int refCnt;
+
+        SharedEventLoopGroup(EventLoopGroup group, int threads) {
+            this.group = group;
+            this.threads = threads;
+        }
+    }
 }
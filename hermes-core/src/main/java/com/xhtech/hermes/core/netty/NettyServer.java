@@ -1,14 +1,24 @@
 package com.xhtech.hermes.core.netty;
 
+import com.xhtech.hermes.core.netty.NettyContext.Role;
 import com.xhtech.hermes.core.netty.initializer.NettyInitializer;
 import io.netty.bootstrap.ServerBootstrap;
+import io.netty.channel.Channel;
 import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.EventLoopGroup;
+import io.netty.channel.group.ChannelGroup;
+import io.netty.channel.group.DefaultChannelGroup;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollChannelOption;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import io.netty.util.concurrent.GlobalEventExecutor;
 import org.springframework.context.ApplicationContext;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 public abstract class NettyServer extends NettyInitializer {
@@ -19,6 +29,13 @@ public abstract class NettyServer extends NettyInitializer {
 
     private ServerBootstrap serverBootstrap;
 
+    private volatile List<Channel> serverChannels = Collections.emptyList();
+
+    /* 本server accept的连接, 线程组共享时stop需要逐个关闭 */
+    private final ChannelGroup childChannels = new DefaultChannelGroup(GlobalEventExecutor.INSTANCE);
+
+    private int acceptors = 1;
+
     public NettyServer() {
     }
 
@@ -29,29 +46,71 @@ public abstract class NettyServer extends NettyInitializer {
     public void start(int port) {
         if (running.compareAndSet(false, true)) {
             new Thread(() -> {
+                int n = getAcceptors();
                 String name = getName();
-                EventLoopGroup bossGroup = getNettyContext().getBossEventLoopGroup(name);
-                EventLoopGroup workerGroup = getNettyContext().getWorkerEventLoopGroup(name);
+
+                /*
+                 * 指定了名称的server使用以名称命名的独立线程组; 否则使用共享线程组,
+                 * 但共享的acceptor线程组可能已按更少的线程数创建, 多个监听socket使用独立的线程组, 保证每个socket一个线程
+                 */
+                boolean exclusiveBoss = name != null || n > 1;
+                boolean exclusiveWorker = name != null;
+                EventLoopGroup bossGroup = exclusiveBoss ? getNettyContext().create(Role.ACCEPTOR, n, name != null ? name : Role.ACCEPTOR.getThreadName())
+                        : getNettyContext().acquire(Role.ACCEPTOR);
+                EventLoopGroup workerGroup = exclusiveWorker ? getNettyContext().create(Role.SERVER_IO, getNettyContext().getThreads(Role.SERVER_IO), name)
+                        : getNettyContext().acquire(Role.SERVER_IO);
+                List<Channel> channels = new ArrayList<>(n);
 
                 try {
                     ServerBootstrap b = new ServerBootstrap();
                     b.group(bossGroup, workerGroup);
                     b.channel(getNettyContext().getServerChannelClass());
                     b.childHandler(this);
+
+                    if (n > 1) {
+                        b.option(EpollChannelOption.SO_REUSEPORT, true);
+                    }
+
                     serverBootstrap = b;
 
-                    logger.info("Server listen port: {}", port);
+                    logger.info("Server listen port: {} [acceptors = {}]", port, n);
+
+                    /* 每次bind从acceptor线程组中轮询取一个EventLoop注册, 内核按连接的四元组hash分发到各个监听socket */
+                    for (int i = 0; i < n; i++) {
+                        ChannelFuture f = b.bind(port).sync();
+                        channels.add(f.channel());
+                    }
 
-                    ChannelFuture f = b.bind(port).sync();
-                    f.channel().closeFuture().sync();
+                    serverChannels = Collections.unmodifiableList(channels);
+
+                    for (Channel channel : channels) {
+                        channel.closeFuture().sync();
+                    }
                 } catch (InterruptedException e) {
                     logger.error("Server start error", e);
                 } finally {
-                    bossGroup.shutdownGracefully();
-                    workerGroup.shutdownGracefully();
+                    for (Channel channel : channels) {
+                        channel.close();
+                    }
+
+                    serverChannels = Collections.emptyList();
+                    childChannels.close().awaitUninterruptibly();
+
+                    if (exclusiveBoss) {
+                        bossGroup.shutdownGracefully();
+                    } else {
+                        getNettyContext().release(Role.ACCEPTOR);
+                    }
+
+                    if (exclusiveWorker) {
+                        workerGroup.shutdownGracefully();
+                    } else {
+                        getNettyContext().release(Role.SERVER_IO);
+                    }
+
                     running.set(false);
                 }
-            }).start();
+            }, getName() != null ? getName() : "netty-server-" + port).start();
         } else {
             logger.info("Server already started");
         }
@@ -64,16 +123,52 @@ public abstract class NettyServer extends NettyInitializer {
             return;
         }
 
-        EventLoopGroup bossGroup = serverBootstrap.config().group();
-        EventLoopGroup workerGroup = serverBootstrap.config().childGroup();
-        bossGroup.shutdownGracefully();
-        workerGroup.shutdownGracefully();
+        /* 线程组可能由NettyContext共享, 关闭监听的channel和已accept的连接, 启动线程退出时释放线程组 */
+        for (Channel channel : serverChannels) {
+            channel.close();
+        }
+
+        childChannels.close();
+    }
+
+    @Override
+    protected void initChannel(Channel ch) throws Exception {
+        childChannels.add(ch);
+        super.initChannel(ch);
+    }
+
+    /**
+     * 本server当前的连接数
+     */
+    public int getChildCount() {
+        return childChannels.size();
     }
 
     public boolean isRunning() {
         return running.get();
     }
 
+    public List<Channel> getServerChannels() {
+        return serverChannels;
+    }
+
+    public int getAcceptors() {
+        return acceptors;
+    }
+
+    /**
+     * 监听同一端口的socket数量, 大于1时使用SO_REUSEPORT由内核把新连接分散到多个acceptor线程,
+     * 适用于大量客户端同时重连的场景, 只在epoll下生效
+     */
+    public void setAcceptors(int acceptors) {
+        if (acceptors > 1 && !Epoll.isAvailable()) {
+            logger.warn("SO_REUSEPORT requires epoll, fallback to single acceptor");
+            this.acceptors = 1;
+        } else {
+            this.acceptors = Math.max(acceptors, 1);
+        }
+    }
+
     @Override
     public void accept(ChannelHandlerContext ctx) {
     }
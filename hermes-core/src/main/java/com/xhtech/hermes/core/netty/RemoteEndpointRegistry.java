@@ -0,0 +1,92 @@
+package com.xhtech.hermes.core.netty;
+
+import com.xhtech.hermes.core.cluster.NodeBase;
+import com.xhtech.hermes.core.netty.ChannelPoolClient.RemoteEndpoint;
+import org.cliffc.high_scale_lib.NonBlockingHashMapLong;
+
+import java.net.Inet4Address;
+import java.net.InetSocketAddress;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 远端节点注册表
+ * IPv4地址按NodeBase.convertNodeID压缩为long作为key, 查找无锁且不产生字符串; 其他地址退化为按InetSocketAddress查找
+ * 增删节点时发布新的不可变快照数组, 发送路径只读取快照
+ */
+public class RemoteEndpointRegistry {
+
+    private static final RemoteEndpoint[] EMPTY = new RemoteEndpoint[0];
+
+    private final NonBlockingHashMapLong<RemoteEndpoint> endpoints = new NonBlockingHashMapLong<>();
+
+    private final Map<InetSocketAddress, RemoteEndpoint> unpackedEndpoints = new ConcurrentHashMap<>();
+
+    private volatile RemoteEndpoint[] snapshot = EMPTY;
+
+    /**
+     * 地址无法压缩(非IPv4或未解析)时返回-1, 有效的key都不为负
+     */
+    public static long key(InetSocketAddress address) {
+        return address.getAddress() instanceof Inet4Address ? NodeBase.convertNodeID(address) : -1;
+    }
+
+    public RemoteEndpoint get(InetSocketAddress address) {
+        long key = key(address);
+        return key >= 0 ? endpoints.get(key) : unpackedEndpoints.get(address);
+    }
+
+    /**
+     * 已存在相同地址的节点时返回已存在的节点, 否则注册并返回null
+     */
+    public synchronized RemoteEndpoint putIfAbsent(RemoteEndpoint remoteEndpoint) {
+        InetSocketAddress address = remoteEndpoint.getWriteAddress().getSocketAddress();
+        long key = key(address);
+        RemoteEndpoint exist = key >= 0 ? endpoints.putIfAbsent(key, remoteEndpoint) : unpackedEndpoints.putIfAbsent(address, remoteEndpoint);
+
+        if (exist == null) {
+            RemoteEndpoint[] current = snapshot;
+            RemoteEndpoint[] next = new RemoteEndpoint[current.length + 1];
+            System.arraycopy(current, 0, next, 0, current.length);
+            next[current.length] = remoteEndpoint;
+            snapshot = next;
+        }
+
+        return exist;
+    }
+
+    public synchronized RemoteEndpoint remove(InetSocketAddress address) {
+        long key = key(address);
+        RemoteEndpoint remoteEndpoint = key >= 0 ? endpoints.remove(key) : unpackedEndpoints.remove(address);
+
+        if (remoteEndpoint != null) {
+            RemoteEndpoint[] current = snapshot;
+            RemoteEndpoint[] next = new RemoteEndpoint[current.length - 1];
+
+            for (int i = 0, j = 0; i < current.length; i++) {
+                if (current[i] != remoteEndpoint) {
+                    next[j++] = current[i];
+                }
+            }
+
+            snapshot = next;
+        }
+
+        return remoteEndpoint;
+    }
+
+    /**
+     * 当前节点的不可变快照, 调用方不能修改返回的数组
+     */
+    public RemoteEndpoint[] snapshot() {
+        return snapshot;
+    }
+
+    public int size() {
+        return snapshot.length;
+    }
+
+    public boolean isEmpty() {
+        return snapshot.length == 0;
+    }
+}
@@ -0,0 +1,27 @@
+package com.xhtech.hermes.core.netty.annotation;
+
+import com.xhtech.hermes.core.schedule.TaskQueueScheduler.OverflowPolicy;
+
+import java.lang.annotation.*;
+
+/**
+ * handler使用独立的任务队列和线程池(隔离舱), 不与其他handler共享, 慢的handler不会拖累其他消息的处理
+ * 隐含@NonBlocking; name相同的handler共用一个线程池
+ */
+@Target({ElementType.TYPE})
+@Retention(RetentionPolicy.RUNTIME)
+@Documented
+public @interface Bulkhead {
+
+    /* 线程池名称, 默认为handler的类名 */
+    String name() default "";
+
+    int poolSize() default 4;
+
+    int queueSize() default 4096;
+
+    OverflowPolicy overflow() default OverflowPolicy.REJECT;
+
+    /* 使用虚拟线程执行, poolSize为同时执行的任务数上限; JDK不支持虚拟线程时回退到平台线程 */
+    boolean virtualThreads() default false;
+}
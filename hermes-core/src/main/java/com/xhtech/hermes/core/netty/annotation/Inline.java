@@ -0,0 +1,13 @@
+package com.xhtech.hermes.core.netty.annotation;
+
+import java.lang.annotation.*;
+
+/**
+ * handler直接在channel的EventLoop上执行, 没有入队和线程切换的开销, 只用于很快的handler(比如Keepalive)
+ * 优先于@NonBlocking和@Bulkhead; EventLoop卡顿时EventLoopWatchdog会记录堆栈和正在执行的handler
+ */
+@Target({ElementType.TYPE})
+@Retention(RetentionPolicy.RUNTIME)
+@Documented
+public @interface Inline {
+}
@@ -0,0 +1,191 @@
+package com.xhtech.hermes.core.netty.channel;
+
+import io.netty.util.concurrent.DefaultThreadFactory;
+import io.netty.util.concurrent.EventExecutor;
+import io.netty.util.concurrent.EventExecutorGroup;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * EventLoop卡顿检测: 定期向每个EventLoop提交一个探测任务, 探测任务超过阈值仍未执行时,
+ * 说明该EventLoop被阻塞, 记录EventLoop线程的堆栈和正在执行的inline handler
+ */
+public class EventLoopWatchdog {
+
+    private static final Logger logger = LoggerFactory.getLogger(EventLoopWatchdog.class);
+
+    public static final long DEFAULT_STALL_THRESHOLD = 200;
+
+    private static final EventLoopWatchdog INSTANCE = new EventLoopWatchdog();
+
+    private static final ThreadLocal<Probe> PROBES = new ThreadLocal<>();
+
+    private final Map<EventExecutorGroup, CopyOnWriteArrayList<Probe>> groups = new ConcurrentHashMap<>();
+
+    private final LongAdder stalls = new LongAdder();
+
+    private volatile long maxLag;
+
+    private volatile long stallThreshold = DEFAULT_STALL_THRESHOLD;
+
+    private ScheduledExecutorService timer;
+
+    private EventLoopWatchdog() {
+    }
+
+    public static EventLoopWatchdog get() {
+        return INSTANCE;
+    }
+
+    public synchronized void watch(EventExecutorGroup group) {
+        if (stallThreshold <= 0 || groups.containsKey(group)) {
+            return;
+        }
+
+        CopyOnWriteArrayList<Probe> probes = new CopyOnWriteArrayList<>();
+
+        for (EventExecutor loop : group) {
+            probes.add(new Probe(loop));
+        }
+
+        groups.put(group, probes);
+
+        if (timer == null) {
+            long interval = Math.max(stallThreshold / 2, 10);
+            timer = Executors.newSingleThreadScheduledExecutor(new DefaultThreadFactory("event-loop-watchdog", true));
+            timer.scheduleWithFixedDelay(this::check, interval, interval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    public synchronized void unwatch(EventExecutorGroup group) {
+        groups.remove(group);
+
+        if (groups.isEmpty() && timer != null) {
+            timer.shutdownNow();
+            timer = null;
+        }
+    }
+
+    private void check() {
+        long now = System.nanoTime();
+        long threshold = TimeUnit.MILLISECONDS.toNanos(stallThreshold);
+
+        for (CopyOnWriteArrayList<Probe> probes : groups.values()) {
+            for (Probe probe : probes) {
+                try {
+                    probe.check(now, threshold);
+                } catch (Throwable e) {
+                    logger.error(e.getMessage(), e);
+                }
+            }
+        }
+    }
+
+    /**
+     * 当前EventLoop线程的探测器, 非EventLoop线程或未被监控时返回null
+     */
+    public static Probe probe() {
+        return PROBES.get();
+    }
+
+    public long getStallThreshold() {
+        return stallThreshold;
+    }
+
+    /**
+     * 卡顿阈值(毫秒), 0表示关闭检测, 只对之后watch的EventLoopGroup生效
+     */
+    public void setStallThreshold(long stallThreshold) {
+        this.stallThreshold = stallThreshold;
+    }
+
+    public long getStalls() {
+        return stalls.sum();
+    }
+
+    /**
+     * 探测任务的最大排队延迟(毫秒)
+     */
+    public long getMaxLag() {
+        return TimeUnit.NANOSECONDS.toMillis(maxLag);
+    }
+
+    public class Probe implements Runnable {
+
+        private final EventExecutor loop;
+
+        private volatile Thread thread;
+
+        private volatile long submittedAt;
+
+        private volatile boolean pending;
+
+        private boolean reported;
+
+        /* 正在EventLoop上执行的inline handler */
+        private volatile String running;
+
+        Probe(EventExecutor loop) {
+            this.loop = loop;
+        }
+
+        void check(long now, long threshold) {
+            if (!pending) {
+                reported = false;
+                submittedAt = now;
+                pending = true;
+                loop.execute(this);
+            } else if (!reported && now - submittedAt > threshold) {
+                reported = true;
+                stalls.increment();
+                logStall(now);
+            }
+        }
+
+        private void logStall(long now) {
+            Thread thread = this.thread;
+            StringBuilder sb = new StringBuilder();
+
+            if (thread != null) {
+                for (StackTraceElement element : thread.getStackTrace()) {
+                    sb.append(System.lineSeparator()).append("\tat ").append(element);
+                }
+            }
+
+            logger.warn("Event loop {} stalled for {}ms [handler = {}]{}", thread != null ? thread.getName() : loop,
+                    TimeUnit.NANOSECONDS.toMillis(now - submittedAt), running, sb);
+        }
+
+        @Override
+        public void run() {
+            if (thread == null) {
+                thread = Thread.currentThread();
+                PROBES.set(this);
+            }
+
+            long lag = System.nanoTime() - submittedAt;
+
+            if (lag > maxLag) {
+                maxLag = lag;
+            }
+
+            pending = false;
+        }
+
+        public void enter(String handler) {
+            running = handler;
+        }
+
+        public void exit() {
+            running = null;
+        }
+    }
+}
@@ -0,0 +1,190 @@
+package com.xhtech.hermes.core.netty.channel;
+
+import io.netty.channel.ChannelDuplexHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPromise;
+import io.netty.util.concurrent.Future;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 合并flush: writeAndFlush只写入缓冲区, 真正的flush推迟到当前EventLoop的任务执行完(或delayMicros之后),
+ * 积累maxWrites条消息、读事件结束、channel不可写或关闭时立即flush, 多条消息共用一次write(2)
+ * 每个channel一个实例, 所有方法都在channel的EventLoop上执行
+ */
+public class FlushBatchingHandler extends ChannelDuplexHandler {
+
+    public static final int DEFAULT_MAX_WRITES = 64;
+
+    private final int maxWrites;
+
+    private final long delayMicros;
+
+    private final Stats stats;
+
+    private ChannelHandlerContext ctx;
+
+    private int writes;
+
+    private boolean flushPending;
+
+    private boolean readInProgress;
+
+    private Future<?> scheduled;
+
+    private final Runnable flushTask = () -> {
+        scheduled = null;
+
+        if (flushPending) {
+            flushNow(ctx);
+        }
+    };
+
+    public FlushBatchingHandler(int maxWrites, long delayMicros, Stats stats) {
+        this.maxWrites = maxWrites > 0 ? maxWrites : DEFAULT_MAX_WRITES;
+        this.delayMicros = delayMicros;
+        this.stats = stats;
+    }
+
+    @Override
+    public void handlerAdded(ChannelHandlerContext ctx) throws Exception {
+        this.ctx = ctx;
+    }
+
+    @Override
+    public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+        writes++;
+        ctx.write(msg, promise);
+    }
+
+    @Override
+    public void flush(ChannelHandlerContext ctx) throws Exception {
+        flushPending = true;
+
+        if (writes >= maxWrites) {
+            flushNow(ctx);
+        } else if (!readInProgress && scheduled == null) {
+            /* execute会排在当前已提交的写任务之后, 同一轮中其他线程提交的writeAndFlush都会被合并 */
+            scheduled = delayMicros > 0 ? ctx.executor().schedule(flushTask, delayMicros, TimeUnit.MICROSECONDS) : ctx.executor().submit(flushTask);
+        }
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+        readInProgress = true;
+        ctx.fireChannelRead(msg);
+    }
+
+    @Override
+    public void channelReadComplete(ChannelHandlerContext ctx) throws Exception {
+        readInProgress = false;
+
+        if (flushPending) {
+            flushNow(ctx);
+        }
+
+        ctx.fireChannelReadComplete();
+    }
+
+    @Override
+    public void channelWritabilityChanged(ChannelHandlerContext ctx) throws Exception {
+        if (!ctx.channel().isWritable() && flushPending) {
+            flushNow(ctx);
+        }
+
+        ctx.fireChannelWritabilityChanged();
+    }
+
+    @Override
+    public void disconnect(ChannelHandlerContext ctx, ChannelPromise promise) throws Exception {
+        flushIfPending(ctx);
+        ctx.disconnect(promise);
+    }
+
+    @Override
+    public void close(ChannelHandlerContext ctx, ChannelPromise promise) throws Exception {
+        flushIfPending(ctx);
+        ctx.close(promise);
+    }
+
+    @Override
+    public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
+        flushIfPending(ctx);
+        ctx.fireExceptionCaught(cause);
+    }
+
+    @Override
+    public void handlerRemoved(ChannelHandlerContext ctx) throws Exception {
+        flushIfPending(ctx);
+    }
+
+    private void flushIfPending(ChannelHandlerContext ctx) {
+        if (flushPending) {
+            flushNow(ctx);
+        }
+    }
+
+    private void flushNow(ChannelHandlerContext ctx) {
+        if (scheduled != null) {
+            scheduled.cancel(false);
+            scheduled = null;
+        }
+
+        if (stats != null) {
+            stats.flushes.increment();
+            stats.messages.add(writes);
+        }
+
+        writes = 0;
+        flushPending = false;
+        ctx.flush();
+    }
+
+    /**
+     * flush次数和消息数的统计, 可由多个channel共享
+     */
+    public static class Stats {
+
+        private final LongAdder flushes = new LongAdder();
+
+        private final LongAdder messages = new LongAdder();
+
+        private long lastSampleTime = System.nanoTime();
+
+        private long lastFlushes;
+
+        public long getFlushes() {
+            return flushes.sum();
+        }
+
+        public long getMessages() {
+            return messages.sum();
+        }
+
+        /**
+         * 平均每次flush写出的消息数
+         */
+        public double getMessagesPerFlush() {
+            long n = flushes.sum();
+            return n > 0 ? (double) messages.sum() / n : 0;
+        }
+
+        /**
+         * 距上次调用以来每秒的flush次数
+         */
+        public synchronized double sampleFlushesPerSecond() {
+            long now = System.nanoTime();
+            long n = flushes.sum();
+            double rate = now > lastSampleTime ? (n - lastFlushes) * 1e9 / (now - lastSampleTime) : 0;
+            lastSampleTime = now;
+            lastFlushes = n;
+            return rate;
+        }
+
+        @Override
+        public String toString() {
+            return "flushes = " + getFlushes() + ", messages = " + getMessages() + ", messagesPerFlush = " + String.format("%.2f", getMessagesPerFlush());
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package com.xhtech.hermes.core.netty.channel;
+
+import com.xhtech.hermes.core.netty.proto.AbstractProto;
+import com.xhtech.hermes.core.netty.proto.Correlated;
+import io.netty.channel.Channel;
+import io.netty.util.AttributeKey;
+import org.cliffc.high_scale_lib.NonBlockingHashMapLong;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 单个连接上等待响应的请求, 以requestId为key(无装箱、无锁), 响应可以乱序到达
+ * 由NettyInitializer在多路复用模式下绑定到channel上
+ */
+public class InflightRequests {
+
+    public static final AttributeKey<InflightRequests> INFLIGHT_REQUESTS_KEY = AttributeKey.valueOf("inflightRequestsKey");
+
+    private final NonBlockingHashMapLong<SerialChannelPromise> requests = new NonBlockingHashMapLong<>();
+
+    private final AtomicInteger sequence = new AtomicInteger();
+
+    public static InflightRequests get(Channel channel) {
+        return channel.attr(INFLIGHT_REQUESTS_KEY).get();
+    }
+
+    public int register(SerialChannelPromise promise) {
+        int requestId;
+
+        do {
+            requestId = sequence.incrementAndGet() & Integer.MAX_VALUE;
+        } while (requestId == 0 || requests.putIfAbsent(requestId, promise) != null);
+
+        return requestId;
+    }
+
+    public boolean answers(Correlated response) {
+        if (!response.isResponse() || response.getRequestId() == 0) {
+            return false;
+        }
+
+        SerialChannelPromise promise = requests.remove(response.getRequestId());
+
+        if (promise != null) {
+            /* 等待方持有一个引用, handler返回后的release不会释放响应中的ByteBuf */
+            promise.wakeUp(AbstractProto.retain(response));
+            return true;
+        }
+
+        return false;
+    }
+
+    public boolean remove(int requestId, SerialChannelPromise promise) {
+        return requests.remove(requestId, promise);
+    }
+
+    public int size() {
+        return requests.size();
+    }
+}
@@ -1,5 +1,6 @@
 package com.xhtech.hermes.core.netty.channel;
 
+import com.xhtech.hermes.core.netty.proto.AbstractProto;
 import com.xhtech.hermes.core.netty.proto.Proto;
 import io.netty.channel.Channel;
 import io.netty.util.AttributeKey;
@@ -10,6 +11,7 @@ import java.net.InetSocketAddress;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.ReentrantLock;
 
 public class InterlocutionPipeline {
 
@@ -19,11 +21,19 @@ public class InterlocutionPipeline {
 
     public static final AttributeKey<InterlocutionPipeline> SERIAL_CHANNEL_PIPELINE_KEY = AttributeKey.valueOf("serialChannelPipelineKey");
 
+    /* 保证登记和写出的顺序一致, 使用ReentrantLock避免虚拟线程在synchronized上占住载体线程 */
+    private final ReentrantLock lock = new ReentrantLock();
+
     public void answers(Proto proto, Channel channel) {
         ConcurrentLinkedQueue<SerialChannelPromise> cfl = get(proto, channel);
 
         if (cfl != null && !cfl.isEmpty()) {
-            cfl.poll().wakeUp(proto);
+            SerialChannelPromise promise = cfl.poll();
+
+            if (promise != null) {
+                /* 等待方持有一个引用, handler返回后的release不会释放响应中的ByteBuf */
+                promise.wakeUp(AbstractProto.retain(proto));
+            }
         }
     }
 
@@ -49,6 +59,10 @@ public class InterlocutionPipeline {
         cfl.offer(promise);
     }
 
+    public ReentrantLock getLock() {
+        return lock;
+    }
+
     public boolean remove(Object obj, SerialChannelPromise promise) {
         ConcurrentLinkedQueue<SerialChannelPromise> cfl = map.get(toKey(obj, promise.channel()));
         return cfl != null ? cfl.remove(promise) : false;
@@ -0,0 +1,49 @@
+package com.xhtech.hermes.core.netty.channel;
+
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 从多个连接中选择出站缓冲积压最少的: 优先选择可写且距离高水位最远(bytesBeforeUnwritable最大)的连接,
+ * 都不可写时选择最快恢复可写(bytesBeforeWritable最小)的连接, 起点轮转使积压相同的连接轮流被选中
+ */
+public class LeastPendingChooser {
+
+    private final AtomicInteger idx = new AtomicInteger();
+
+    public ChannelHandlerContext choose(ChannelHandlerContext[] contexts) {
+        int length = contexts.length;
+
+        if (length == 0) {
+            return null;
+        } else if (length == 1) {
+            return contexts[0];
+        }
+
+        int start = (idx.getAndIncrement() & Integer.MAX_VALUE) % length;
+        ChannelHandlerContext best = null;
+        long bestScore = Long.MIN_VALUE;
+
+        for (int i = 0; i < length; i++) {
+            ChannelHandlerContext context = contexts[(start + i) % length];
+            long score = score(context.channel());
+
+            if (best == null || score > bestScore) {
+                best = context;
+                bestScore = score;
+            }
+        }
+
+        return best;
+    }
+
+    private long score(Channel channel) {
+        if (!channel.isActive()) {
+            return Long.MIN_VALUE;
+        }
+
+        return channel.isWritable() ? channel.bytesBeforeUnwritable() : -channel.bytesBeforeWritable() - 1;
+    }
+}
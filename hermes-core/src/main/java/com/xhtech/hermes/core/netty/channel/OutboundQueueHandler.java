@@ -0,0 +1,259 @@
+package com.xhtech.hermes.core.netty.channel;
+
+import com.xhtech.hermes.core.netty.exception.OutboundQueueFullException;
+import com.xhtech.hermes.core.netty.proto.AbstractProto;
+import com.xhtech.hermes.core.netty.proto.Coalescable;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelDuplexHandler;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPromise;
+import io.netty.util.AttributeKey;
+import io.netty.util.ReferenceCountUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.channels.ClosedChannelException;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 有界的出站队列: channel可写(未超过WRITE_BUFFER_WATER_MARK的高水位)时消息直接写出,
+ * 不可写时暂存在队列中, 恢复可写后按顺序写出; 队列满时按OverflowPolicy处理, 慢速的对端最多占用capacity条消息的内存
+ * 每个channel一个实例, 队列只在channel的EventLoop上访问, 深度可在任意线程读取
+ * 丢弃、替换、拒绝的消息只释放这次write持有的引用(见AbstractProto的引用计数约定), 写给其他channel的同一个proto不受影响
+ */
+public class OutboundQueueHandler extends ChannelDuplexHandler {
+
+    private static final Logger logger = LoggerFactory.getLogger(OutboundQueueHandler.class);
+
+    public static final AttributeKey<OutboundQueueHandler> OUTBOUND_QUEUE_KEY = AttributeKey.newInstance("outboundQueue");
+
+    public static final int DEFAULT_CAPACITY = 1024;
+
+    public enum OverflowPolicy {
+        /* 丢弃队列中最早的消息 */
+        DROP_OLDEST,
+        /* 替换队列中coalesceKey相同的消息, 没有可合并的消息时丢弃最早的消息 */
+        COALESCE,
+        /* 拒绝新消息, write的promise以OutboundQueueFullException失败 */
+        REJECT
+    }
+
+    private final int capacity;
+
+    private final OverflowPolicy policy;
+
+    private final Stats stats;
+
+    private final ArrayDeque<PendingWrite> queue = new ArrayDeque<>();
+
+    private final Map<Object, PendingWrite> coalescing = new HashMap<>();
+
+    private volatile int depth;
+
+    public OutboundQueueHandler(int capacity, OverflowPolicy policy, Stats stats) {
+        this.capacity = capacity > 0 ? capacity : DEFAULT_CAPACITY;
+        this.policy = policy != null ? policy : OverflowPolicy.DROP_OLDEST;
+        this.stats = stats;
+    }
+
+    public static OutboundQueueHandler get(Channel channel) {
+        return channel.attr(OUTBOUND_QUEUE_KEY).get();
+    }
+
+    @Override
+    public void handlerAdded(ChannelHandlerContext ctx) throws Exception {
+        ctx.channel().attr(OUTBOUND_QUEUE_KEY).set(this);
+    }
+
+    @Override
+    public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+        if (queue.isEmpty() && ctx.channel().isWritable()) {
+            ctx.write(msg, promise);
+            return;
+        }
+
+        Object key = policy == OverflowPolicy.COALESCE && msg instanceof Coalescable ? ((Coalescable) msg).coalesceKey() : null;
+        PendingWrite exist = key != null ? coalescing.get(key) : null;
+
+        if (exist != null) {
+            /* 被替换的消息不再写出, 它的promise跟随新消息完成 */
+            release(exist.msg);
+            ChannelPromise superseded = exist.promise;
+            promise.addListener((ChannelFutureListener) f -> {
+                if (f.isSuccess()) {
+                    superseded.trySuccess();
+                } else {
+                    superseded.tryFailure(f.cause());
+                }
+            });
+            exist.msg = msg;
+            exist.promise = promise;
+            increment(stats == null ? null : stats.coalesced);
+            return;
+        }
+
+        if (queue.size() >= capacity) {
+            if (policy == OverflowPolicy.REJECT) {
+                release(msg);
+                promise.tryFailure(new OutboundQueueFullException(String.valueOf(ctx.channel())));
+                increment(stats == null ? null : stats.rejected);
+                return;
+            }
+
+            PendingWrite oldest = poll();
+            release(oldest.msg);
+            oldest.promise.tryFailure(new OutboundQueueFullException(String.valueOf(ctx.channel())));
+            increment(stats == null ? null : stats.dropped);
+        }
+
+        PendingWrite pending = new PendingWrite(msg, promise, key);
+        queue.add(pending);
+
+        if (key != null) {
+            coalescing.put(key, pending);
+        }
+
+        depth = queue.size();
+    }
+
+    @Override
+    public void channelWritabilityChanged(ChannelHandlerContext ctx) throws Exception {
+        if (ctx.channel().isWritable()) {
+            drain(ctx);
+        }
+
+        ctx.fireChannelWritabilityChanged();
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        discard(new ClosedChannelException());
+        ctx.fireChannelInactive();
+    }
+
+    @Override
+    public void handlerRemoved(ChannelHandlerContext ctx) throws Exception {
+        discard(new ClosedChannelException());
+    }
+
+    private void drain(ChannelHandlerContext ctx) {
+        boolean written = false;
+
+        while (!queue.isEmpty() && ctx.channel().isWritable()) {
+            PendingWrite pending = poll();
+            ctx.write(pending.msg, pending.promise);
+            written = true;
+        }
+
+        if (written) {
+            ctx.flush();
+        }
+    }
+
+    private void discard(Throwable cause) {
+        if (!queue.isEmpty()) {
+            logger.warn("Discard {} pending outbound messages", queue.size());
+        }
+
+        while (!queue.isEmpty()) {
+            PendingWrite pending = poll();
+            release(pending.msg);
+            pending.promise.tryFailure(cause);
+        }
+    }
+
+    private PendingWrite poll() {
+        PendingWrite pending = queue.poll();
+
+        if (pending.key != null) {
+            coalescing.remove(pending.key);
+        }
+
+        depth = queue.size();
+        return pending;
+    }
+
+    /**
+     * 释放一次write持有的一个引用, 写给多个channel的proto由写出方按channel分别retain
+     */
+    private static void release(Object msg) {
+        if (msg instanceof AbstractProto) {
+            AbstractProto.release(msg);
+        } else {
+            ReferenceCountUtil.release(msg);
+        }
+    }
+
+    private static void increment(LongAdder adder) {
+        if (adder != null) {
+            adder.increment();
+        }
+    }
+
+    /**
+     * 队列中等待写出的消息数
+     */
+    public int getDepth() {
+        return depth;
+    }
+
+    public boolean isFull() {
+        return depth >= capacity;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public OverflowPolicy getPolicy() {
+        return policy;
+    }
+
+    private static class PendingWrite {
+
+        Object msg;
+
+        ChannelPromise promise;
+
+        final Object key;
+
+        PendingWrite(Object msg, ChannelPromise promise, Object key) {
+            this.msg = msg;
+            this.promise = promise;
+            this.key = key;
+        }
+    }
+
+    /**
+     * 丢弃、合并、拒绝的消息数, 可由多个channel共享
+     */
+    public static class Stats {
+
+        private final LongAdder dropped = new LongAdder();
+
+        private final LongAdder coalesced = new LongAdder();
+
+        private final LongAdder rejected = new LongAdder();
+
+        public long getDropped() {
+            return dropped.sum();
+        }
+
+        public long getCoalesced() {
+            return coalesced.sum();
+        }
+
+        public long getRejected() {
+            return rejected.sum();
+        }
+
+        @Override
+        public String toString() {
+            return "dropped = " + getDropped() + ", coalesced = " + getCoalesced() + ", rejected = " + getRejected();
+        }
+    }
+}
@@ -0,0 +1,125 @@
+package com.xhtech.hermes.core.netty.channel;
+
+import com.xhtech.hermes.core.netty.proto.AbstractProto;
+import io.netty.bootstrap.Bootstrap;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * 固定数量的长连接, 不经过连接池的acquire/release, 消息以无锁轮询的方式分散到各个连接上
+ * 适用于只写不等待响应的消息(netty的channel本身支持多线程写)
+ * 连接在首次轮询到该槽位时建立, 断开后在下一次轮询到该槽位时重新建立
+ */
+public class PinnedChannelGroup {
+
+    private static final Logger logger = LoggerFactory.getLogger(PinnedChannelGroup.class);
+
+    private final Bootstrap bootstrap;
+
+    private final AtomicReferenceArray<ChannelFuture> slots;
+
+    private final AtomicInteger idx = new AtomicInteger();
+
+    private volatile boolean closed = false;
+
+    public PinnedChannelGroup(Bootstrap bootstrap, int size) {
+        this.bootstrap = bootstrap;
+        this.slots = new AtomicReferenceArray<>(size);
+    }
+
+    public void writeAndFlush(Object msg) {
+        if (closed) {
+            logger.warn("Pinned channels already closed, drop message {}", msg);
+            AbstractProto.release(msg);
+            return;
+        }
+
+        ChannelFuture future = choose();
+
+        if (future.isDone()) {
+            write(future, msg);
+        } else {
+            future.addListener((ChannelFutureListener) f -> write(f, msg));
+        }
+    }
+
+    private void write(ChannelFuture future, Object msg) {
+        if (future.isSuccess()) {
+            future.channel().writeAndFlush(msg);
+        } else {
+            logger.warn("Pinned channel connect failed, drop message {}", msg, future.cause());
+            AbstractProto.release(msg);
+        }
+    }
+
+    /**
+     * 严格轮询: 轮到的槽位没有连接或连接已断开时建立连接, 只跳过已连接但不可写的槽位, 都不可写时使用轮到的槽位
+     */
+    private ChannelFuture choose() {
+        int size = slots.length();
+        int start = (idx.getAndIncrement() & Integer.MAX_VALUE) % size;
+
+        for (int i = 0; i < size; i++) {
+            ChannelFuture future = slot((start + i) % size);
+
+            if (!future.isDone() || !future.isSuccess() || future.channel().isWritable()) {
+                return future;
+            }
+        }
+
+        return slot(start);
+    }
+
+    private ChannelFuture slot(int i) {
+        ChannelFuture future = slots.get(i);
+
+        if (future != null && (!future.isDone() || future.isSuccess() && future.channel().isActive())) {
+            return future;
+        }
+
+        ChannelFuture connect = bootstrap.connect();
+
+        if (slots.compareAndSet(i, future, connect)) {
+            return connect;
+        }
+
+        connect.addListener(ChannelFutureListener.CLOSE);
+        ChannelFuture current = slots.get(i);
+        return current != null ? current : connect;
+    }
+
+    public int size() {
+        return slots.length();
+    }
+
+    public int activeCount() {
+        int count = 0;
+
+        for (int i = 0; i < slots.length(); i++) {
+            ChannelFuture future = slots.get(i);
+
+            if (future != null && future.isSuccess() && future.channel().isActive()) {
+                count++;
+            }
+        }
+
+        return count;
+    }
+
+    public void close() {
+        closed = true;
+
+        for (int i = 0; i < slots.length(); i++) {
+            ChannelFuture future = slots.getAndSet(i, null);
+
+            if (future != null) {
+                future.addListener(ChannelFutureListener.CLOSE);
+            }
+        }
+    }
+}
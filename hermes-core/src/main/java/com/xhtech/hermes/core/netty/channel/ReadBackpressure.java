@@ -0,0 +1,84 @@
+package com.xhtech.hermes.core.netty.channel;
+
+import com.xhtech.hermes.core.schedule.KeyedTaskExecutor;
+import com.xhtech.hermes.core.schedule.TaskQueueScheduler;
+import io.netty.channel.Channel;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BooleanSupplier;
+
+/**
+ * 读端背压: TaskQueueScheduler饱和后, 继续投递任务的channel关闭autoRead, 由TCP的接收窗口把压力传递给对端;
+ * 调度器恢复到低水位以下时重新打开这些channel的autoRead, 同样适用于KeyedTaskExecutor的lane
+ */
+public class ReadBackpressure implements TaskQueueScheduler.SaturationListener {
+
+    private static final Logger logger = LoggerFactory.getLogger(ReadBackpressure.class);
+
+    private final BooleanSupplier saturated;
+
+    private final Set<Channel> paused = ConcurrentHashMap.newKeySet();
+
+    public ReadBackpressure(TaskQueueScheduler scheduler) {
+        this.saturated = scheduler::isSaturated;
+        scheduler.addSaturationListener(this);
+    }
+
+    public ReadBackpressure(KeyedTaskExecutor executor) {
+        this.saturated = executor::isSaturated;
+        executor.addSaturationListener(this);
+    }
+
+    /**
+     * 只跟随KeyedTaskExecutor中一个lane的饱和状态
+     */
+    public ReadBackpressure(KeyedTaskExecutor executor, int lane) {
+        this.saturated = () -> executor.isLaneSaturated(lane);
+        executor.addSaturationListener(lane, this);
+    }
+
+    /**
+     * 投递任务后调用, 调度器饱和时暂停channel的读取
+     */
+    public void pauseIfSaturated(Channel channel) {
+        if (!saturated.getAsBoolean() || !channel.config().isAutoRead()) {
+            return;
+        }
+
+        if (paused.add(channel)) {
+            channel.config().setAutoRead(false);
+
+            /* 暂停的同时调度器可能已经恢复, 此时onDrained已经执行过, 需要自行恢复 */
+            if (!saturated.getAsBoolean() && paused.remove(channel)) {
+                channel.config().setAutoRead(true);
+            }
+        }
+    }
+
+    @Override
+    public void onSaturated() {
+    }
+
+    @Override
+    public void onDrained() {
+        if (!paused.isEmpty()) {
+            logger.info("Resume reading {} channels", paused.size());
+        }
+
+        for (Channel channel : paused) {
+            if (paused.remove(channel)) {
+                channel.config().setAutoRead(true);
+            }
+        }
+    }
+
+    /**
+     * 当前暂停读取的channel数
+     */
+    public int getPausedCount() {
+        return paused.size();
+    }
+}
@@ -0,0 +1,256 @@
+package com.xhtech.hermes.core.netty.channel;
+
+import io.netty.channel.Channel;
+import io.netty.util.Attribute;
+import io.netty.util.AttributeKey;
+import io.netty.util.HashedWheelTimer;
+import io.netty.util.Timeout;
+import io.netty.util.TimerTask;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.SocketAddress;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 所有RPC请求共享的超时服务, 基于时间轮(HashedWheelTimer)实现
+ * 超时的检测不再依赖调用线程的wait, 开销只与等待中的请求数量有关, 同时按远端地址统计等待中和已超时的请求数,
+ * 远端地址的统计在该地址的最后一个连接关闭时移除
+ */
+public class RequestTimeoutService {
+
+    private static final Logger logger = LoggerFactory.getLogger(RequestTimeoutService.class);
+
+    public static final long DEFAULT_TICK_DURATION = 10;
+
+    public static final int DEFAULT_TICKS_PER_WHEEL = 1024;
+
+    private static final RequestTimeoutService INSTANCE = new RequestTimeoutService();
+
+    private static final AttributeKey<EndpointStats> STATS_KEY = AttributeKey.valueOf(EndpointStats.class.getName());
+
+    private final HashedWheelTimer timer;
+
+    private final Map<SocketAddress, EndpointStats> stats = new ConcurrentHashMap<>();
+
+    private final EndpointStats unknown = new EndpointStats(null);
+
+    /* 已移除的地址的超时数也计入总数 */
+    private final LongAdder timeouts = new LongAdder();
+
+    private RequestTimeoutService() {
+        timer = new HashedWheelTimer(new DefaultThreadFactory("request-timeout", true), DEFAULT_TICK_DURATION, TimeUnit.MILLISECONDS, DEFAULT_TICKS_PER_WHEEL);
+    }
+
+    public static RequestTimeoutService get() {
+        return INSTANCE;
+    }
+
+    /**
+     * 登记一个等待响应的请求, 超时后执行task(在时间轮线程上, task中不能有阻塞操作)
+     * 请求正常结束时须调用RequestTimeout.complete()
+     */
+    public RequestTimeout newTimeout(Channel channel, long timeoutMillis, Runnable task) {
+        RequestTimeout requestTimeout = newRequest(channel, task);
+        requestTimeout.timeout = timer.newTimeout(requestTimeout, timeoutMillis, TimeUnit.MILLISECONDS);
+        return requestTimeout;
+    }
+
+    /**
+     * 登记一个由调用线程自己等待的请求, 只做统计, 不放入时间轮, 超时由调用线程调用RequestTimeout.expire()
+     */
+    public RequestTimeout newRequest(Channel channel) {
+        return newRequest(channel, null);
+    }
+
+    private RequestTimeout newRequest(Channel channel, Runnable task) {
+        RequestTimeout requestTimeout = new RequestTimeout(this, getStats(channel), task);
+        requestTimeout.stats.pending.increment();
+        return requestTimeout;
+    }
+
+    /**
+     * channel对应远端地址的统计, 首次使用时登记, channel关闭时释放
+     */
+    private EndpointStats getStats(Channel channel) {
+        Attribute<EndpointStats> attribute = channel.attr(STATS_KEY);
+        EndpointStats endpointStats = attribute.get();
+
+        if (endpointStats == null) {
+            SocketAddress endpoint = channel.remoteAddress();
+
+            if (endpoint == null) {
+                return unknown;
+            }
+
+            endpointStats = attach(endpoint);
+            EndpointStats old = attribute.setIfAbsent(endpointStats);
+
+            if (old != null) {
+                detach(endpoint);
+                return old;
+            }
+
+            channel.closeFuture().addListener(f -> detach(endpoint));
+        }
+
+        return endpointStats;
+    }
+
+    private EndpointStats attach(SocketAddress endpoint) {
+        return stats.compute(endpoint, (key, value) -> {
+            value = value != null ? value : new EndpointStats(key);
+            value.channels++;
+            return value;
+        });
+    }
+
+    private void detach(SocketAddress endpoint) {
+        stats.computeIfPresent(endpoint, (key, value) -> --value.channels > 0 ? value : null);
+    }
+
+    /**
+     * 地址当前的统计, 没有登记(未连接或连接已全部关闭)时返回计数为0的统计, 不会返回null
+     */
+    public EndpointStats getStats(SocketAddress endpoint) {
+        if (endpoint == null) {
+            return unknown;
+        }
+
+        EndpointStats endpointStats = stats.get(endpoint);
+        return endpointStats != null ? endpointStats : new EndpointStats(endpoint);
+    }
+
+    public Map<SocketAddress, EndpointStats> getStats() {
+        return Collections.unmodifiableMap(stats);
+    }
+
+    public long pending() {
+        return stats.values().stream().mapToLong(EndpointStats::pending).sum() + unknown.pending();
+    }
+
+    public long timeouts() {
+        return timeouts.sum();
+    }
+
+    public static class RequestTimeout implements TimerTask {
+
+        private static final int PENDING = 0;
+
+        private static final int COMPLETED = 1;
+
+        private static final int EXPIRED = 2;
+
+        private static final AtomicIntegerFieldUpdater<RequestTimeout> STATE_UPDATER = AtomicIntegerFieldUpdater.newUpdater(RequestTimeout.class, "state");
+
+        private final RequestTimeoutService service;
+
+        private final EndpointStats stats;
+
+        private final Runnable task;
+
+        private volatile Timeout timeout;
+
+        private volatile int state = PENDING;
+
+        RequestTimeout(RequestTimeoutService service, EndpointStats stats, Runnable task) {
+            this.service = service;
+            this.stats = stats;
+            this.task = task;
+        }
+
+        @Override
+        public void run(Timeout timeout) {
+            expire();
+        }
+
+        /**
+         * 请求已结束(收到响应或失败), 从时间轮中移除
+         */
+        public boolean complete() {
+            if (STATE_UPDATER.compareAndSet(this, PENDING, COMPLETED)) {
+                stats.pending.decrement();
+
+                Timeout timeout = this.timeout;
+                if (timeout != null) {
+                    timeout.cancel();
+                }
+
+                return true;
+            }
+
+            return false;
+        }
+
+        /**
+         * 请求已超时, 可由时间轮触发, 也可由等待线程主动触发
+         */
+        public boolean expire() {
+            if (STATE_UPDATER.compareAndSet(this, PENDING, EXPIRED)) {
+                stats.pending.decrement();
+                stats.timeouts.increment();
+                service.timeouts.increment();
+
+                Timeout timeout = this.timeout;
+                if (timeout != null) {
+                    timeout.cancel();
+                }
+
+                if (task != null) {
+                    try {
+                        task.run();
+                    } catch (Throwable e) {
+                        logger.error(e.getMessage(), e);
+                    }
+                }
+
+                return true;
+            }
+
+            return false;
+        }
+
+        public boolean isExpired() {
+            return state == EXPIRED;
+        }
+    }
+
+    public static class EndpointStats {
+
+        private final SocketAddress endpoint;
+
+        private final LongAdder pending = new LongAdder();
+
+        private final LongAdder timeouts = new LongAdder();
+
+        /* 使用该地址的连接数, 只在stats.compute中修改 */
+        private int channels;
+
+        EndpointStats(SocketAddress endpoint) {
+            this.endpoint = endpoint;
+        }
+
+        public SocketAddress getEndpoint() {
+            return endpoint;
+        }
+
+        public long pending() {
+            return pending.sum();
+        }
+
+        public long timeouts() {
+            return timeouts.sum();
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s {pending = %d, timeouts = %d}", endpoint, pending(), timeouts());
+        }
+    }
+}
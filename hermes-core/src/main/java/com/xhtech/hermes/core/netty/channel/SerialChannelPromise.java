@@ -1,6 +1,10 @@
 package com.xhtech.hermes.core.netty.channel;
 
+import com.xhtech.hermes.core.netty.channel.RequestTimeoutService.RequestTimeout;
+import com.xhtech.hermes.core.netty.proto.AbstractProto;
+import com.xhtech.hermes.core.netty.proto.Correlated;
 import io.netty.channel.Channel;
+import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.DefaultChannelPromise;
 import io.netty.handler.timeout.ReadTimeoutException;
 import io.netty.util.Attribute;
@@ -8,20 +12,38 @@ import io.netty.util.concurrent.EventExecutor;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
-
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 请求/响应的promise, 等待响应时基于CompletableFuture(LockSupport.park)而不是synchronized + wait,
+ * 在虚拟线程上等待不会占住载体线程
+ */
 public class SerialChannelPromise<T> extends DefaultChannelPromise {
 
     private static final Logger logger = LoggerFactory.getLogger(SerialChannelPromise.class);
 
     public static final long DEFAULT_RECV_TIMEOUT = 10000;
 
-    private volatile short waiters;
+    @SuppressWarnings("rawtypes")
+    private static final AtomicReferenceFieldUpdater<SerialChannelPromise, CompletableFuture> FUTURE_UPDATER =
+            AtomicReferenceFieldUpdater.newUpdater(SerialChannelPromise.class, CompletableFuture.class, "future");
 
     private volatile T value;
 
     private volatile boolean invalid = false;
 
+    private volatile CompletableFuture<T> future;
+
+    private InflightRequests inflightRequests;
+
+    private int requestId;
+
     public SerialChannelPromise(Channel channel, EventExecutor executor) {
         super(channel, executor);
     }
@@ -31,8 +53,72 @@ public class SerialChannelPromise<T> extends DefaultChannelPromise {
     }
 
     public T writeAndFlush(T t, long timeout) {
+        RequestTimeout requestTimeout = RequestTimeoutService.get().newRequest(channel());
+
         try {
-            Channel channel = channel();
+            ask(t);
+
+            /* 超时与响应竞争完成future: 超时先完成则之后到达的响应由wakeUp释放, 否则照常返回响应 */
+            if (!awaiting(timeout) && response().completeExceptionally(ReadTimeoutException.INSTANCE)) {
+                requestTimeout.expire();
+                invalid = cancel(t);
+                throw ReadTimeoutException.INSTANCE;
+            }
+
+            return getValue();
+        } catch (InterruptedException e) {
+            logger.error(e.getMessage(), e);
+            return null;
+        } finally {
+            requestTimeout.complete();
+        }
+    }
+
+    /**
+     * 非阻塞的请求/响应: 写出请求后立即返回, 响应到达时在channel的event loop上完成future,
+     * 超时或写出失败时future以异常结束, 因此future的回调中不能有阻塞操作
+     */
+    public CompletableFuture<T> writeAndFlushAsync(T t, long timeout) {
+        CompletableFuture<T> future = response();
+
+        ask(t);
+
+        addListener((ChannelFutureListener) f -> {
+            if (!f.isSuccess() && future.completeExceptionally(f.cause())) {
+                invalid = cancel(t);
+            }
+        });
+
+        Channel channel = channel();
+        Runnable expire = () -> {
+            if (future.completeExceptionally(ReadTimeoutException.INSTANCE)) {
+                invalid = cancel(t);
+            }
+        };
+
+        RequestTimeout requestTimeout = RequestTimeoutService.get().newTimeout(channel, timeout, () -> {
+            try {
+                channel.eventLoop().execute(expire);
+            } catch (RejectedExecutionException e) {
+                /* event loop已关闭, 在超时线程上直接结束future并释放请求, 否则调用方和连接池的channel永远等不到回调 */
+                expire.run();
+            }
+        });
+
+        future.whenComplete((v, e) -> requestTimeout.complete());
+        return future;
+    }
+
+    private void ask(T t) {
+        Channel channel = channel();
+        InflightRequests inflightRequests = InflightRequests.get(channel);
+
+        if (inflightRequests != null && t instanceof Correlated) {
+            this.inflightRequests = inflightRequests;
+            this.requestId = inflightRequests.register(this);
+            ((Correlated) t).setRequestId(requestId);
+            channel.writeAndFlush(t, this);
+        } else {
             Attribute<InterlocutionPipeline> attribute = channel.attr(InterlocutionPipeline.SERIAL_CHANNEL_PIPELINE_KEY);
             InterlocutionPipeline pipeline = attribute.get();
 
@@ -42,26 +128,63 @@ public class SerialChannelPromise<T> extends DefaultChannelPromise {
                 pipeline = old != null ? old : pipeline;
             }
 
-            synchronized (pipeline) {
+            ReentrantLock lock = pipeline.getLock();
+            lock.lock();
+
+            try {
                 pipeline.ask(t, this);
                 channel.writeAndFlush(t, this);
+            } finally {
+                lock.unlock();
             }
+        }
+    }
 
-            if (!awaiting(timeout)) {
-                invalid = pipeline.remove(t, this);
-                throw ReadTimeoutException.INSTANCE;
-            }
+    private boolean cancel(T t) {
+        if (inflightRequests != null) {
+            return inflightRequests.remove(requestId, this);
+        }
 
-            return getValue();
-        } catch (InterruptedException e) {
-            logger.error(e.getMessage(), e);
-            return null;
+        InterlocutionPipeline pipeline = channel().attr(InterlocutionPipeline.SERIAL_CHANNEL_PIPELINE_KEY).get();
+        return pipeline != null && pipeline.remove(t, this);
+    }
+
+    /**
+     * 请求是否按requestId匹配响应, 是则连接在写出后即可被其他请求复用
+     */
+    public boolean isMultiplexed() {
+        return inflightRequests != null;
+    }
+
+    /**
+     * 响应的future, 同步和异步等待共用, 首次调用时创建
+     */
+    @SuppressWarnings("unchecked")
+    private CompletableFuture<T> response() {
+        CompletableFuture<T> future = this.future;
+
+        if (future == null) {
+            FUTURE_UPDATER.compareAndSet(this, null, new CompletableFuture<T>());
+            future = this.future;
         }
+
+        return future;
     }
 
+    /**
+     * 响应到达时唤醒等待方, 等待方已超时返回false并释放为等待方retain的响应
+     */
     public boolean wakeUp(T t) {
         setValue(t);
-        checkNotifyWaiters();
+
+        /* 先写value再读future, 与awaiting中先创建future再读value相对应, 不会丢失唤醒 */
+        CompletableFuture<T> future = this.future;
+        if (future != null && !future.complete(t)) {
+            setValue(null);
+            AbstractProto.release(t);
+            return false;
+        }
+
         return true;
     }
 
@@ -71,7 +194,7 @@ public class SerialChannelPromise<T> extends DefaultChannelPromise {
 
     public boolean awaiting(final long timeoutNanos, boolean interruptable) throws InterruptedException {
         if (timeoutNanos <= 0) {
-            return isDone();
+            return isDocked();
         }
 
         if (interruptable && Thread.interrupted()) {
@@ -80,29 +203,29 @@ public class SerialChannelPromise<T> extends DefaultChannelPromise {
 
         checkDeadLock();
 
+        CompletableFuture<T> future = response();
         long startTime = System.nanoTime();
         boolean interrupted = false;
 
         try {
             for (long waitTime = timeoutNanos; waitTime > 0; waitTime = timeoutNanos - (System.nanoTime() - startTime)) {
-                synchronized (this) {
-                    if (isDocked()) {
-                        return true;
-                    }
+                if (isDocked()) {
+                    return true;
+                }
 
-                    incWaiters();
-
-                    try {
-                        wait(waitTime / 1000000, (int) (waitTime % 1000000));
-                    } catch (InterruptedException e) {
-                        if (interruptable) {
-                            throw e;
-                        } else {
-                            interrupted = true;
-                        }
-                    } finally {
-                        decWaiters();
+                try {
+                    future.get(waitTime, TimeUnit.NANOSECONDS);
+                    return true;
+                } catch (InterruptedException e) {
+                    if (interruptable) {
+                        throw e;
+                    } else {
+                        interrupted = true;
                     }
+                } catch (ExecutionException e) {
+                    return isDocked();
+                } catch (TimeoutException e) {
+                    break;
                 }
             }
 
@@ -114,23 +237,6 @@ public class SerialChannelPromise<T> extends DefaultChannelPromise {
         }
     }
 
-    private void incWaiters() {
-        if (waiters == Short.MAX_VALUE) {
-            throw new IllegalStateException("too many waiters: " + this);
-        }
-        ++waiters;
-    }
-
-    private void decWaiters() {
-        --waiters;
-    }
-
-    public synchronized void checkNotifyWaiters() {
-        if (waiters > 0) {
-            notifyAll();
-        }
-    }
-
     public boolean isDocked() {
         return value != null;
     }
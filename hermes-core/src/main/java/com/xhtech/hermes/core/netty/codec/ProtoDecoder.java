@@ -1,6 +1,7 @@
 package com.xhtech.hermes.core.netty.codec;
 
 import com.xhtech.hermes.core.netty.exception.ProtoDecodeException;
+import com.xhtech.hermes.core.netty.proto.AbstractProto;
 import com.xhtech.hermes.core.netty.proto.Proto;
 import io.netty.buffer.ByteBuf;
 import io.netty.channel.ChannelHandlerContext;
@@ -14,7 +15,12 @@ public abstract class ProtoDecoder extends ByteToMessageDecoder {
 
     private static final Logger logger = LoggerFactory.getLogger(ProtoDecoder.class);
 
-    protected List<Proto> protocols;
+    protected ProtoRegistry registry;
+
+    /**
+     * 开启后支持slice的proto(如PushMessage的消息内容)直接引用入站帧, 由处理方负责release
+     */
+    protected boolean retainedSlice = false;
 
     public abstract boolean check(ByteBuf in) throws ProtoDecodeException;
 
@@ -40,29 +46,55 @@ public abstract class ProtoDecoder extends ByteToMessageDecoder {
     }
 
     public Proto decode(ByteBuf in, byte cmd) {
+        Proto proto = registry != null ? registry.newInstance(cmd) : null;
+
+        if (proto == null) {
+            logger.warn("Unkown cmd[{}]", cmd);
+            return null;
+        }
+
+        if (retainedSlice && proto instanceof AbstractProto) {
+            ((AbstractProto) proto).setRetainedSlice(true);
+        }
+
         try {
-            for (Proto proto : protocols) {
-                if (proto.support(cmd)) {
-                    proto = proto.getClass().newInstance().decode(in);
-                    in.skipBytes(in.readableBytes());
-                    return proto;
-                }
-            }
+            proto = proto.decode(in);
+            in.skipBytes(in.readableBytes());
+            return proto;
         } catch (Exception e) {
+            AbstractProto.release(proto);
             logger.error("Proto decode error. [cmd={}]", cmd, e);
             return null;
         }
-
-        logger.warn("Unkown cmd[{}]", cmd);
-
-        return null;
     }
 
     @Override
     protected void ensureNotSharable() {
     }
 
+    /**
+     * NettyInitializer创建decoder时会以共享的ProtoRegistry覆盖这里的设置
+     *
+     * @deprecated 使用setRegistry(ProtoRegistry)
+     */
+    @Deprecated
     public void setProtocols(List<Proto> protocols) {
-        this.protocols = protocols;
+        setRegistry(new ProtoRegistry(protocols));
+    }
+
+    public boolean isRetainedSlice() {
+        return retainedSlice;
+    }
+
+    public void setRetainedSlice(boolean retainedSlice) {
+        this.retainedSlice = retainedSlice;
+    }
+
+    public ProtoRegistry getRegistry() {
+        return registry;
+    }
+
+    public void setRegistry(ProtoRegistry registry) {
+        this.registry = registry;
     }
 }
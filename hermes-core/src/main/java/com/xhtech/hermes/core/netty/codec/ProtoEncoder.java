@@ -1,17 +1,68 @@
 package com.xhtech.hermes.core.netty.codec;
 
+import com.xhtech.hermes.core.netty.proto.AbstractProto;
 import com.xhtech.hermes.core.netty.proto.Proto;
 import io.netty.buffer.ByteBuf;
 import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPromise;
+import io.netty.handler.codec.EncoderException;
 import io.netty.handler.codec.MessageToByteEncoder;
 
 public abstract class ProtoEncoder extends MessageToByteEncoder<Proto> {
 
+    /**
+     * 直接编码模式: proto按available()的大小从channel的分配器申请(池化)缓冲区并直接写入,
+     * 关闭时回退到proto.encode()生成堆缓冲区再复制的方式
+     */
+    private boolean directEncoding = true;
+
+    @Override
+    public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+        if (directEncoding && msg instanceof AbstractProto) {
+            ByteBuf buf;
+
+            try {
+                buf = encode(ctx, (AbstractProto) msg);
+            } finally {
+                /* 每次write消耗proto的一个引用 */
+                AbstractProto.release(msg);
+            }
+
+            ctx.write(buf, promise);
+        } else {
+            super.write(ctx, msg, promise);
+        }
+    }
+
+    protected ByteBuf encode(ChannelHandlerContext ctx, AbstractProto proto) {
+        int available = proto.available();
+        ByteBuf buf = ctx.alloc().ioBuffer(available);
+
+        try {
+            return proto.encode(buf, available);
+        } catch (Throwable t) {
+            buf.release();
+            throw new EncoderException(t);
+        }
+    }
+
     @Override
     protected void encode(ChannelHandlerContext channelHandlerContext, Proto proto, ByteBuf out) throws Exception {
-        ByteBuf buf = proto.encode();
-        out.writeBytes(buf);
-        buf.clear();
-        buf.release();
+        try {
+            ByteBuf buf = proto.encode();
+            out.writeBytes(buf);
+            buf.clear();
+            buf.release();
+        } finally {
+            AbstractProto.release(proto);
+        }
+    }
+
+    public boolean isDirectEncoding() {
+        return directEncoding;
+    }
+
+    public void setDirectEncoding(boolean directEncoding) {
+        this.directEncoding = directEncoding;
     }
 }
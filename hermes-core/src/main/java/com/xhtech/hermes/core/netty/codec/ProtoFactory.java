@@ -0,0 +1,52 @@
+package com.xhtech.hermes.core.netty.codec;
+
+import com.xhtech.hermes.core.netty.proto.Proto;
+
+import java.lang.invoke.CallSite;
+import java.lang.invoke.LambdaMetafactory;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+
+/**
+ * proto实例工厂, 替代解码时每帧的getClass().newInstance()反射调用
+ */
+@FunctionalInterface
+public interface ProtoFactory {
+
+    Proto create();
+
+    /**
+     * 为proto的无参构造方法生成工厂, 优先通过LambdaMetafactory生成等价于构造方法引用(Cls::new)的实现,
+     * 类加载器不可见等情况下退化为直接调用MethodHandle
+     */
+    static ProtoFactory of(Class<? extends Proto> cls) {
+        MethodHandles.Lookup lookup = MethodHandles.lookup();
+        MethodHandle constructor;
+
+        try {
+            constructor = lookup.findConstructor(cls, MethodType.methodType(void.class));
+        } catch (NoSuchMethodException | IllegalAccessException e) {
+            throw new IllegalArgumentException("Proto must have a public no-arg constructor: " + cls.getName(), e);
+        }
+
+        try {
+            CallSite site = LambdaMetafactory.metafactory(lookup, "create",
+                    MethodType.methodType(ProtoFactory.class),
+                    MethodType.methodType(Proto.class),
+                    constructor,
+                    MethodType.methodType(cls));
+            return (ProtoFactory) site.getTarget().invoke();
+        } catch (Throwable e) {
+            MethodHandle handle = constructor.asType(MethodType.methodType(Proto.class));
+
+            return () -> {
+                try {
+                    return (Proto) handle.invokeExact();
+                } catch (Throwable t) {
+                    throw new IllegalStateException("Cannot create proto: " + cls.getName(), t);
+                }
+            };
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package com.xhtech.hermes.core.netty.codec;
+
+import com.xhtech.hermes.core.netty.proto.Proto;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collection;
+
+/**
+ * 按cmd索引的proto注册表, 创建后不可变, 所有event loop上的decoder共享同一个实例
+ * 每个cmd(0x00~0xFF)占用一个槽位, 解码时按cmd直接定位工厂, 与注册的proto数量无关
+ */
+public final class ProtoRegistry {
+
+    private static final Logger logger = LoggerFactory.getLogger(ProtoRegistry.class);
+
+    public static final int SLOTS = 256;
+
+    private final ProtoFactory[] factories = new ProtoFactory[SLOTS];
+
+    private final int size;
+
+    public ProtoRegistry(Collection<? extends Proto> protocols) {
+        int size = 0;
+
+        for (Proto proto : protocols) {
+            ProtoFactory factory = null;
+
+            for (int slot = 0; slot < SLOTS; slot++) {
+                if (!proto.support((byte) slot)) {
+                    continue;
+                }
+
+                if (factories[slot] != null) {
+                    logger.warn("Duplicate proto for cmd[{}], {} is ignored", slot, proto.getClass().getName());
+                    continue;
+                }
+
+                if (factory == null) {
+                    factory = ProtoFactory.of(proto.getClass());
+                    size++;
+                }
+
+                factories[slot] = factory;
+            }
+        }
+
+        this.size = size;
+    }
+
+    public ProtoFactory get(byte cmd) {
+        return factories[cmd & 0xFF];
+    }
+
+    public boolean support(byte cmd) {
+        return factories[cmd & 0xFF] != null;
+    }
+
+    public Proto newInstance(byte cmd) {
+        ProtoFactory factory = factories[cmd & 0xFF];
+        return factory != null ? factory.create() : null;
+    }
+
+    public int size() {
+        return size;
+    }
+}
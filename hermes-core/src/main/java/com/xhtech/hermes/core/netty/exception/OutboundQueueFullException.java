@@ -0,0 +1,10 @@
+package com.xhtech.hermes.core.netty.exception;
+
+import java.io.IOException;
+
+public class OutboundQueueFullException extends IOException {
+
+    public OutboundQueueFullException(String message) {
+        super(message + " outbound queue is full");
+    }
+}
@@ -1,19 +1,43 @@
 package com.xhtech.hermes.core.netty.handler;
 
 
+import com.xhtech.hermes.core.netty.annotation.Bulkhead;
+import com.xhtech.hermes.core.netty.channel.EventLoopWatchdog;
+import com.xhtech.hermes.core.netty.channel.ReadBackpressure;
 import com.xhtech.hermes.core.netty.listener.HandlerListener;
+import com.xhtech.hermes.core.netty.proto.AbstractProto;
 import com.xhtech.hermes.core.netty.session.ClientSessionManager;
+import com.xhtech.hermes.core.schedule.KeyedTaskExecutor;
 import com.xhtech.hermes.core.schedule.Task;
 import com.xhtech.hermes.core.schedule.TaskQueueScheduler;
 import io.netty.channel.ChannelHandlerContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.core.task.TaskRejectedException;
 
 import java.io.Serializable;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 public abstract class AbstractHandler<T extends Serializable> implements IHandler<T> {
 
-    private static volatile TaskQueueScheduler taskQueueScheduler;
+    private static final Logger logger = LoggerFactory.getLogger(AbstractHandler.class);
+
+    /* 任务队列的高低水位, 超过高水位后投递任务的channel暂停读取, 降到低水位以下恢复 */
+    public static final int DEFAULT_HIGH_WATERMARK = 65536;
+
+    public static final int DEFAULT_LOW_WATERMARK = 16384;
+
+    public static final String SHARED_SCHEDULER_NAME = "SharedHandler";
+
+    /* 有序执行的lane数上限, 与@Bulkhead的poolSize(虚拟线程时为并发上限, 可能很大)无关 */
+    public static final int MAX_KEYED_LANES = TaskQueueScheduler.DEFAULT_EVENT_LOOP_THREADS;
+
+    /* 所有handler的任务队列(共享的和@Bulkhead的), 按名称索引 */
+    private static final Map<String, HandlerExecutor> executors = new ConcurrentHashMap<>();
 
     private boolean blocking = false;
 
@@ -21,24 +45,77 @@ public abstract class AbstractHandler<T extends Serializable> implements IHandle
 
     private ClientSessionManager sessionManager;
 
+    private volatile HandlerExecutor executor;
+
     @Override
     public void process(ChannelHandlerContext ctx, T t) {
         if (isBlocking()) {
-            doHandler(ctx, t);
+            EventLoopWatchdog.Probe probe = EventLoopWatchdog.probe();
+
+            if (probe != null) {
+                probe.enter(getClass().getSimpleName());
+            }
+
+            try {
+                doHandler(ctx, t);
+            } finally {
+                if (probe != null) {
+                    probe.exit();
+                }
+            }
         } else {
-            addTask(new Task() {
+            Task task = new Task() {
                 @Override
                 public void execute() {
                     doHandler(ctx, t);
                 }
-            });
+
+                @Override
+                public void discard() {
+                    AbstractProto.release(t);
+                }
+            };
+
+            Object key = orderingKey(ctx, t);
+            HandlerExecutor executor = getExecutor();
+
+            try {
+                if (key != null) {
+                    KeyedExecutor keyed = executor.keyed();
+                    int lane = keyed.executor.lane(key);
+                    keyed.executor.execute(key, task);
+
+                    /* 只暂停投递到饱和lane的channel, 该lane恢复后即恢复读取 */
+                    if (keyed.executor.isLaneSaturated(lane)) {
+                        keyed.backpressure[lane].pauseIfSaturated(ctx.channel());
+                    }
+                } else {
+                    executor.scheduler.add(task);
+                    executor.backpressure.pauseIfSaturated(ctx.channel());
+                }
+            } catch (TaskRejectedException e) {
+                logger.warn("{} rejected {}: {}", getClass().getSimpleName(), t, e.getMessage());
+                task.discard();
+            }
         }
     }
 
+    /**
+     * 返回非null时, 相同key(比如clientId)的消息按到达顺序串行处理, 不同key的消息并行处理, 默认不保证顺序
+     * 有序的消息在handler所属任务队列(共享的或@Bulkhead的)对应的KeyedTaskExecutor上执行
+     */
+    protected Object orderingKey(ChannelHandlerContext ctx, T t) {
+        return null;
+    }
+
     private void doHandler(ChannelHandlerContext ctx, T t) {
-        fireBeforeHandlerEvent(ctx, t);
-        handler(ctx, t);
-        fireHandlerEvent(ctx, t);
+        try {
+            fireBeforeHandlerEvent(ctx, t);
+            handler(ctx, t);
+            fireHandlerEvent(ctx, t);
+        } finally {
+            AbstractProto.release(t);
+        }
     }
 
     @Override
@@ -66,15 +143,36 @@ public abstract class AbstractHandler<T extends Serializable> implements IHandle
     }
 
     public void addTask(Task task) {
-        if (taskQueueScheduler == null) {
-            synchronized (this) {
-                if (taskQueueScheduler == null) {
-                    taskQueueScheduler = new TaskQueueScheduler(64, getClass().getSimpleName());
-                }
-            }
+        getExecutor().scheduler.add(task);
+    }
+
+    private HandlerExecutor getExecutor() {
+        HandlerExecutor executor = this.executor;
+
+        if (executor == null) {
+            executor = executors.computeIfAbsent(SHARED_SCHEDULER_NAME, name -> {
+                TaskQueueScheduler scheduler = new TaskQueueScheduler(64, name);
+                scheduler.setWatermarks(DEFAULT_LOW_WATERMARK, DEFAULT_HIGH_WATERMARK, 0, 0);
+                return new HandlerExecutor(scheduler);
+            });
+            this.executor = executor;
         }
 
-        taskQueueScheduler.add(task);
+        return executor;
+    }
+
+    /**
+     * 按@Bulkhead的配置使用独立的任务队列, 高低水位为队列容量的3/4和1/4
+     */
+    public void setBulkhead(Bulkhead bulkhead) {
+        String name = bulkhead.name().isEmpty() ? getClass().getSimpleName() : bulkhead.name();
+
+        this.executor = executors.computeIfAbsent(name, n -> {
+            TaskQueueScheduler scheduler = new TaskQueueScheduler(bulkhead.poolSize(), bulkhead.queueSize(), true, n, bulkhead.virtualThreads());
+            scheduler.setOverflowPolicy(bulkhead.overflow());
+            scheduler.setWatermarks(scheduler.capacity() / 4, scheduler.capacity() / 4 * 3, 0, 0);
+            return new HandlerExecutor(scheduler);
+        });
     }
 
     @Override
@@ -97,7 +195,101 @@ public abstract class AbstractHandler<T extends Serializable> implements IHandle
         this.sessionManager = sessionManager;
     }
 
+    /**
+     * 共享的任务队列, 还没有任务投递时为null
+     */
     public static TaskQueueScheduler getTaskQueueScheduler() {
-        return taskQueueScheduler;
+        HandlerExecutor executor = executors.get(SHARED_SCHEDULER_NAME);
+        return executor != null ? executor.scheduler : null;
+    }
+
+    public static ReadBackpressure getReadBackpressure() {
+        HandlerExecutor executor = executors.get(SHARED_SCHEDULER_NAME);
+        return executor != null ? executor.backpressure : null;
+    }
+
+    /**
+     * 所有handler任务队列的指标(队列深度、排队延迟、提交/执行/拒绝/丢弃数), 用于定位积压在哪个handler
+     */
+    public static Map<String, TaskQueueScheduler> getTaskQueueSchedulers() {
+        Map<String, TaskQueueScheduler> schedulers = new LinkedHashMap<>();
+        executors.forEach((name, executor) -> schedulers.put(name, executor.scheduler));
+        return schedulers;
+    }
+
+    /**
+     * 各任务队列的有序执行器, 只包含已经有有序消息投递的
+     */
+    public static Map<String, KeyedTaskExecutor> getKeyedTaskExecutors() {
+        Map<String, KeyedTaskExecutor> keyedExecutors = new LinkedHashMap<>();
+        executors.forEach((name, executor) -> {
+            KeyedExecutor keyed = executor.keyed;
+            if (keyed != null) {
+                keyedExecutors.put(name, keyed.executor);
+            }
+        });
+        return keyedExecutors;
+    }
+
+    private static class HandlerExecutor {
+
+        final TaskQueueScheduler scheduler;
+
+        final ReadBackpressure backpressure;
+
+        volatile KeyedExecutor keyed;
+
+        HandlerExecutor(TaskQueueScheduler scheduler) {
+            this.scheduler = scheduler;
+            this.backpressure = new ReadBackpressure(scheduler);
+            scheduler.addStopListener(this::stopKeyed);
+        }
+
+        /**
+         * 首次投递有序消息时创建, 与任务队列使用同样的线程类型和总容量, lane数不超过MAX_KEYED_LANES,
+         * 任务队列stop后随之停止, 再次投递时重新创建
+         */
+        KeyedExecutor keyed() {
+            KeyedExecutor keyed = this.keyed;
+
+            if (keyed == null || !keyed.executor.isRunning()) {
+                synchronized (this) {
+                    if ((keyed = this.keyed) == null || !keyed.executor.isRunning()) {
+                        int lanes = Math.max(Math.min(scheduler.getPoolSize(), MAX_KEYED_LANES), 1);
+                        int laneCapacity = Math.max(scheduler.capacity() / lanes, 2);
+                        KeyedTaskExecutor executor = new KeyedTaskExecutor(lanes, laneCapacity, scheduler.getName() + "-keyed", scheduler.isVirtualThreads());
+                        executor.setWatermarks(laneCapacity / 4, laneCapacity / 4 * 3);
+
+                        keyed = new KeyedExecutor(executor);
+                        this.keyed = keyed;
+                    }
+                }
+            }
+
+            return keyed;
+        }
+
+        synchronized void stopKeyed() {
+            if (keyed != null) {
+                keyed.executor.shutdown();
+            }
+        }
+    }
+
+    private static class KeyedExecutor {
+
+        final KeyedTaskExecutor executor;
+
+        /* 每个lane一个, 只恢复投递到该lane的channel */
+        final ReadBackpressure[] backpressure;
+
+        KeyedExecutor(KeyedTaskExecutor executor) {
+            this.executor = executor;
+            this.backpressure = new ReadBackpressure[executor.getLanes()];
+
+            for (int i = 0; i < backpressure.length; i++) {
+                backpressure[i] = new ReadBackpressure(executor, i);
+            }
+        }
     }
 }
@@ -1,5 +1,7 @@
 package com.xhtech.hermes.core.netty.handler;
 
+import com.xhtech.hermes.core.netty.annotation.Bulkhead;
+import com.xhtech.hermes.core.netty.annotation.Inline;
 import com.xhtech.hermes.core.netty.annotation.NonBlocking;
 import com.xhtech.hermes.core.netty.initializer.NettyInitializer;
 import com.xhtech.hermes.core.netty.listener.HandlerListener;
@@ -47,7 +49,14 @@ public class Dispatcher {
         if (nettyInitializer.isProtoType(proto)) {
             handlers.put(proto.getCmd(), handler);
             bindListener(handler, proto.getCmd());
-            handler.setBlocking(!handler.getClass().isAnnotationPresent(NonBlocking.class));
+            boolean inline = handler.getClass().isAnnotationPresent(Inline.class);
+            Bulkhead bulkhead = inline ? null : handler.getClass().getAnnotation(Bulkhead.class);
+            handler.setBlocking(inline || (!handler.getClass().isAnnotationPresent(NonBlocking.class) && bulkhead == null));
+
+            if (bulkhead != null && handler instanceof AbstractHandler) {
+                ((AbstractHandler) handler).setBulkhead(bulkhead);
+            }
+
             handler.setSessionManager(nettyInitializer.getSessionManager());
         }
     }
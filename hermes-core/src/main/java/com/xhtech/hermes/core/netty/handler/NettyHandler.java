@@ -1,6 +1,9 @@
 package com.xhtech.hermes.core.netty.handler;
 
+import com.xhtech.hermes.core.netty.channel.InflightRequests;
 import com.xhtech.hermes.core.netty.channel.InterlocutionPipeline;
+import com.xhtech.hermes.core.netty.proto.AbstractProto;
+import com.xhtech.hermes.core.netty.proto.Correlated;
 import com.xhtech.hermes.core.netty.proto.Proto;
 import com.xhtech.hermes.core.netty.session.ClientSession;
 import io.netty.channel.ChannelHandler;
@@ -45,13 +48,21 @@ public class NettyHandler extends SimpleChannelInboundHandler<Proto> {
 
             if (handler != null) {
 
-                InterlocutionPipeline pipeline = ctx.channel().attr(InterlocutionPipeline.SERIAL_CHANNEL_PIPELINE_KEY).get();
-                if (pipeline != null) {
-                    pipeline.answers(proto, ctx.channel());
+                if (proto instanceof Correlated && ((Correlated) proto).getRequestId() != 0) {
+                    InflightRequests inflightRequests = InflightRequests.get(ctx.channel());
+                    if (inflightRequests != null) {
+                        inflightRequests.answers((Correlated) proto);
+                    }
+                } else {
+                    InterlocutionPipeline pipeline = ctx.channel().attr(InterlocutionPipeline.SERIAL_CHANNEL_PIPELINE_KEY).get();
+                    if (pipeline != null) {
+                        pipeline.answers(proto, ctx.channel());
+                    }
                 }
 
                 handler.process(ctx, proto);
             } else {
+                AbstractProto.release(proto);
                 logger.debug("Unkown command cause cannot find handler.");
             }
         } catch (Throwable t) {
@@ -1,8 +1,12 @@
 package com.xhtech.hermes.core.netty.initializer;
 
 import com.xhtech.hermes.core.netty.NettyContext;
+import com.xhtech.hermes.core.netty.channel.FlushBatchingHandler;
+import com.xhtech.hermes.core.netty.channel.InflightRequests;
+import com.xhtech.hermes.core.netty.channel.OutboundQueueHandler;
 import com.xhtech.hermes.core.netty.codec.ProtoDecoder;
 import com.xhtech.hermes.core.netty.codec.ProtoEncoder;
+import com.xhtech.hermes.core.netty.codec.ProtoRegistry;
 import com.xhtech.hermes.core.netty.handler.Dispatcher;
 import com.xhtech.hermes.core.netty.handler.NettyHandler;
 import com.xhtech.hermes.core.netty.handler.SocketEventHandler;
@@ -11,6 +15,7 @@ import com.xhtech.hermes.core.netty.session.ClientSessionManager;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelHandler;
 import io.netty.channel.ChannelInitializer;
+import io.netty.channel.WriteBufferWaterMark;
 import io.netty.handler.codec.ByteToMessageDecoder;
 import io.netty.handler.timeout.IdleStateHandler;
 import org.springframework.context.ApplicationContext;
@@ -29,12 +34,18 @@ public abstract class NettyInitializer extends ChannelInitializer<Channel> imple
 
     protected Dispatcher dispatcher;
 
+    protected volatile ProtoRegistry protoRegistry;
+
     protected ThreadLocal<ProtoDecoder> decoders = ThreadLocal.withInitial(() -> createProtoDecode());
 
     protected ProtoEncoder encoder;
 
     protected NettyHandler handler;
 
+    protected final FlushBatchingHandler.Stats flushStats = new FlushBatchingHandler.Stats();
+
+    protected final OutboundQueueHandler.Stats outboundQueueStats = new OutboundQueueHandler.Stats();
+
     private AtomicBoolean afterPropertiesSetted = new AtomicBoolean(false);
 
     public NettyInitializer() {
@@ -51,25 +62,55 @@ public abstract class NettyInitializer extends ChannelInitializer<Channel> imple
 
         this.sessionManager = createSessionManager();
         this.dispatcher = new Dispatcher(this);
+        this.protoRegistry = createProtoRegistry();
         this.encoder = getEncoder();
         this.handler = getNettyHandler();
     }
 
     @Override
     protected void initChannel(Channel ch) throws Exception {
+        ensureAfterPropertiesSet();
+        initPipeline(ch);
+    }
+
+    protected void ensureAfterPropertiesSet() {
         if (afterPropertiesSetted.compareAndSet(false, true)) {
             afterPropertiesSet();
         }
-
-        initPipeline(ch);
     }
 
     public void initPipeline(Channel ch) {
+        initPipeline(ch, handler);
+    }
+
+    /**
+     * 以指定的handler作为pipeline的最后一个handler, 用于连接事件需要单独处理的channel
+     */
+    public void initPipeline(Channel ch, ChannelHandler handler) {
+        if (isMultiplexing()) {
+            ch.attr(InflightRequests.INFLIGHT_REQUESTS_KEY).setIfAbsent(new InflightRequests());
+        }
+
+        WriteBufferWaterMark waterMark = getWriteBufferWaterMark();
+
+        if (waterMark != null) {
+            ch.config().setWriteBufferWaterMark(waterMark);
+        }
+
+        if (isFlushBatching()) {
+            addPipeline(ch, new FlushBatchingHandler(getFlushMaxWrites(), getFlushDelayMicros(), flushStats));
+        }
+
         addPipeline(ch, getIdleStateHandler());
         addPipeline(ch, getLengthFieldBasedFrameDecoder());
         addPipeline(ch, decoders.get());
 
         addPipeline(ch, encoder);
+
+        if (getOutboundQueueCapacity() > 0) {
+            addPipeline(ch, new OutboundQueueHandler(getOutboundQueueCapacity(), getOutboundOverflowPolicy(), outboundQueueStats));
+        }
+
         addPipeline(ch, handler);
     }
 
@@ -81,6 +122,12 @@ public abstract class NettyInitializer extends ChannelInitializer<Channel> imple
 
     public ProtoDecoder createProtoDecode() {
         ProtoDecoder decoder = getDecoder();
+        decoder.setRegistry(getProtoRegistry());
+        decoder.setRetainedSlice(isRetainedSlice());
+        return decoder;
+    }
+
+    public ProtoRegistry createProtoRegistry() {
         List<Proto> protocols = new ArrayList<>();
 
         dispatcher.getProtocols().stream().forEach((e) -> {
@@ -89,8 +136,18 @@ public abstract class NettyInitializer extends ChannelInitializer<Channel> imple
             }
         });
 
-        decoder.setProtocols(protocols);
-        return decoder;
+        return new ProtoRegistry(protocols);
+    }
+
+    public ProtoRegistry getProtoRegistry() {
+        if (protoRegistry == null) {
+            synchronized (this) {
+                if (protoRegistry == null) {
+                    protoRegistry = createProtoRegistry();
+                }
+            }
+        }
+        return protoRegistry;
     }
 
     public synchronized ClientSessionManager createSessionManager() {
@@ -101,6 +158,70 @@ public abstract class NettyInitializer extends ChannelInitializer<Channel> imple
         return true;
     }
 
+    /**
+     * 是否开启请求多路复用: sendAndRecv发出的Correlated请求在header中携带requestId, 同一连接上可同时存在多个请求,
+     * 响应按requestId匹配(对端须通过reply回写requestId)
+     */
+    public boolean isMultiplexing() {
+        return false;
+    }
+
+    /**
+     * 是否以retained slice解码大数据字段(比如M到C的消息转发), 开启后proto在handler处理完后自动release,
+     * 需要在handler之外继续使用的数据须自行retain
+     */
+    public boolean isRetainedSlice() {
+        return false;
+    }
+
+    /**
+     * 是否合并flush: 同一EventLoop一轮任务中(或getFlushDelayMicros()内)的writeAndFlush合并为一次flush,
+     * 适用于sendAll等大量扇出的场景, 会增加单条消息最多一轮任务(或getFlushDelayMicros())的延迟
+     */
+    public boolean isFlushBatching() {
+        return false;
+    }
+
+    /**
+     * 累计多少条消息后立即flush
+     */
+    public int getFlushMaxWrites() {
+        return FlushBatchingHandler.DEFAULT_MAX_WRITES;
+    }
+
+    /**
+     * flush最多推迟的微秒数, 0表示推迟到当前EventLoop的任务执行完
+     */
+    public long getFlushDelayMicros() {
+        return 0;
+    }
+
+    public FlushBatchingHandler.Stats getFlushStats() {
+        return flushStats;
+    }
+
+    /**
+     * channel的写缓冲高低水位, 超过高水位后channel不可写, null表示使用netty的默认值(32K/64K)
+     */
+    public WriteBufferWaterMark getWriteBufferWaterMark() {
+        return null;
+    }
+
+    /**
+     * 每个channel出站队列的容量, channel不可写时消息进入队列, 0表示不使用出站队列(消息全部堆积在netty的写缓冲中)
+     */
+    public int getOutboundQueueCapacity() {
+        return 0;
+    }
+
+    public OutboundQueueHandler.OverflowPolicy getOutboundOverflowPolicy() {
+        return OutboundQueueHandler.OverflowPolicy.DROP_OLDEST;
+    }
+
+    public OutboundQueueHandler.Stats getOutboundQueueStats() {
+        return outboundQueueStats;
+    }
+
     public abstract boolean isClient();
 
     public abstract IdleStateHandler getIdleStateHandler();
@@ -2,16 +2,45 @@ package com.xhtech.hermes.core.netty.proto;
 
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.Unpooled;
+import io.netty.util.IllegalReferenceCountException;
+
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
 
 public abstract class AbstractProto implements Proto {
 
+    private static final AtomicIntegerFieldUpdater<AbstractProto> REF_CNT_UPDATER = AtomicIntegerFieldUpdater.newUpdater(AbstractProto.class, "refCnt");
+
+    /**
+     * 大数据字段是否以ByteBuf的方式引用(解码时由decoder设置, 或者通过add(ByteBuf)等方式传入), 避免复制到堆上的byte[]
+     * 持有ByteBuf的proto按引用计数管理, 计数归零时释放ByteBuf, 没有持有ByteBuf的proto上retain/release无效果
+     * <p>
+     * 引用计数的约定与netty的ByteBuf一致:
+     * 1.解码出的proto计数为1, 由handler持有, handler返回后释放
+     * 2.每次write消耗一个引用, 由encoder编码后释放, 写给多个channel或在handler返回后转发时需要先retain
+     * 3.交给sendAndRecv等待方的响应会额外retain一次, 由等待方使用完后释放
+     */
+    private transient boolean retainedSlice = false;
+
+    private transient volatile int refCnt = 1;
+
     public boolean support(byte cmd) {
         return cmd == getCmd();
     }
 
     public ByteBuf encode() {
-        ByteBuf buf = Unpooled.buffer(available());
-        writeHeader(buf);
+        int available = available();
+        return encode(Unpooled.buffer(available), available);
+    }
+
+    /**
+     * 将header和body直接写入调用方提供的缓冲区(比如encoder从池中分配的buf), 不再经过中间缓冲区复制
+     *
+     * @param buf       目标缓冲区
+     * @param available 帧长度, 由调用方预先计算一次, 避免在header中重复计算bodyLength
+     * @return buf
+     */
+    public ByteBuf encode(ByteBuf buf, int available) {
+        writeHeader(buf, available);
         writeBody(buf);
         return buf;
     }
@@ -24,6 +53,10 @@ public abstract class AbstractProto implements Proto {
 
     public abstract void writeHeader(ByteBuf buf);
 
+    public void writeHeader(ByteBuf buf, int available) {
+        writeHeader(buf);
+    }
+
     public abstract void writeBody(ByteBuf buf);
 
     public abstract void readHeader(ByteBuf buf);
@@ -58,6 +91,10 @@ public abstract class AbstractProto implements Proto {
         }
     }
 
+    public ByteBuf readSlice(ByteBuf buf, int length) {
+        return buf.readRetainedSlice(length);
+    }
+
     public byte[] readBytes(ByteBuf buf, int length) {
         byte[] array = new byte[length];
         buf.readBytes(array);
@@ -100,6 +137,81 @@ public abstract class AbstractProto implements Proto {
         return ((prefix & 0xFFFFFF) << 8) | suffix & 0xFF;
     }
 
+    public boolean isRetainedSlice() {
+        return retainedSlice;
+    }
+
+    public void setRetainedSlice(boolean retainedSlice) {
+        this.retainedSlice = retainedSlice;
+    }
+
+    public int refCnt() {
+        return refCnt;
+    }
+
+    public AbstractProto retain() {
+        if (!retainedSlice) {
+            return this;
+        }
+
+        for (; ; ) {
+            int refCnt = this.refCnt;
+
+            if (refCnt <= 0) {
+                throw new IllegalReferenceCountException(refCnt, 1);
+            }
+
+            if (REF_CNT_UPDATER.compareAndSet(this, refCnt, refCnt + 1)) {
+                return this;
+            }
+        }
+    }
+
+    /**
+     * 释放一个引用, 计数归零时释放持有的ByteBuf, 已经归零时忽略
+     */
+    public void release() {
+        if (!retainedSlice) {
+            return;
+        }
+
+        for (; ; ) {
+            int refCnt = this.refCnt;
+
+            if (refCnt <= 0) {
+                return;
+            }
+
+            if (REF_CNT_UPDATER.compareAndSet(this, refCnt, refCnt - 1)) {
+                if (refCnt == 1) {
+                    deallocate();
+                }
+
+                return;
+            }
+        }
+    }
+
+    /**
+     * 引用计数归零时释放持有的ByteBuf
+     */
+    protected void deallocate() {
+    }
+
+    public static <T> T retain(T obj) {
+        if (obj instanceof AbstractProto) {
+            ((AbstractProto) obj).retain();
+        }
+
+        return obj;
+    }
+
+    public static void release(Object obj) {
+        if (obj instanceof AbstractProto) {
+            ((AbstractProto) obj).release();
+        }
+    }
+
     @Override
     public String toSimpleString() {
         return toString();
@@ -0,0 +1,10 @@
+package com.xhtech.hermes.core.netty.proto;
+
+/**
+ * 可合并的proto, 出站队列积压时相同coalesceKey的消息只保留最新的一条(比如状态推送)
+ * coalesceKey为null表示不参与合并
+ */
+public interface Coalescable {
+
+    Object coalesceKey();
+}
@@ -0,0 +1,16 @@
+package com.xhtech.hermes.core.netty.proto;
+
+/**
+ * 在协议header中携带requestId的proto, 用于同一连接上多个请求/响应的多路复用
+ * requestId为0表示不参与关联(按原有的类型+地址方式匹配)
+ */
+public interface Correlated {
+
+    int getRequestId();
+
+    void setRequestId(int requestId);
+
+    boolean isResponse();
+
+    void setResponse(boolean response);
+}
@@ -0,0 +1,12 @@
+package com.xhtech.hermes.core.netty.selector;
+
+import com.xhtech.hermes.core.netty.ChannelPoolClient.RemoteEndpoint;
+
+/**
+ * sendAndRecv选择远端节点的策略
+ * remoteEndpoints为注册表发布的不可变快照, 实现不能修改
+ */
+public interface EndpointSelector {
+
+    RemoteEndpoint select(RemoteEndpoint[] remoteEndpoints);
+}
@@ -0,0 +1,50 @@
+package com.xhtech.hermes.core.netty.selector;
+
+import com.xhtech.hermes.core.netty.ChannelPoolClient.RemoteEndpoint;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 按指数加权平均延迟选择: cost = latency * (outstanding + 1), 选择cost最小的节点, cost相同时选择等待响应的请求数较少的
+ * 没有延迟样本的节点按其他节点的平均延迟计算(都没有样本时为DEFAULT_LATENCY), 新加入的节点不会因为cost为0而承接所有请求
+ */
+public class EwmaLatencySelector implements EndpointSelector {
+
+    public static final double DEFAULT_LATENCY = TimeUnit.MILLISECONDS.toNanos(1);
+
+    @Override
+    public RemoteEndpoint select(RemoteEndpoint[] remoteEndpoints) {
+        int size = remoteEndpoints.length;
+        double sum = 0;
+        int sampled = 0;
+
+        for (int i = 0; i < size; i++) {
+            double latency = remoteEndpoints[i].getLatency();
+
+            if (latency > 0) {
+                sum += latency;
+                sampled++;
+            }
+        }
+
+        double seed = sampled > 0 ? sum / sampled : DEFAULT_LATENCY;
+        RemoteEndpoint selected = null;
+        double min = Double.MAX_VALUE;
+        int minOutstanding = Integer.MAX_VALUE;
+
+        for (int i = 0; i < size; i++) {
+            RemoteEndpoint remoteEndpoint = remoteEndpoints[i];
+            double latency = remoteEndpoint.getLatency();
+            int outstanding = remoteEndpoint.getOutstanding();
+            double cost = (latency > 0 ? latency : seed) * (outstanding + 1);
+
+            if (cost < min || (cost == min && outstanding < minOutstanding)) {
+                min = cost;
+                minOutstanding = outstanding;
+                selected = remoteEndpoint;
+            }
+        }
+
+        return selected;
+    }
+}
@@ -0,0 +1,42 @@
+package com.xhtech.hermes.core.netty.selector;
+
+import com.xhtech.hermes.core.netty.ChannelPoolClient.RemoteEndpoint;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * power-of-two-choices: 随机取两个节点, 选择等待响应的请求数较少的一个(相同时比较延迟)
+ * 只读取两个节点的计数, 开销与节点数量无关
+ */
+public class PowerOfTwoChoicesSelector implements EndpointSelector {
+
+    @Override
+    public RemoteEndpoint select(RemoteEndpoint[] remoteEndpoints) {
+        int size = remoteEndpoints.length;
+
+        if (size == 0) {
+            return null;
+        } else if (size == 1) {
+            return remoteEndpoints[0];
+        }
+
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int i = random.nextInt(size);
+        int j = random.nextInt(size - 1);
+
+        if (j >= i) {
+            j++;
+        }
+
+        RemoteEndpoint a = remoteEndpoints[i];
+        RemoteEndpoint b = remoteEndpoints[j];
+        int outstandingA = a.getOutstanding();
+        int outstandingB = b.getOutstanding();
+
+        if (outstandingA != outstandingB) {
+            return outstandingA < outstandingB ? a : b;
+        }
+
+        return a.getLatency() <= b.getLatency() ? a : b;
+    }
+}
@@ -0,0 +1,17 @@
+package com.xhtech.hermes.core.netty.selector;
+
+import com.xhtech.hermes.core.netty.ChannelPoolClient.RemoteEndpoint;
+import com.xhtech.hermes.core.util.LoopChosser;
+
+/**
+ * 轮询, 不考虑节点的负载
+ */
+public class RoundRobinSelector implements EndpointSelector {
+
+    private final LoopChosser<RemoteEndpoint> loopChosser = new LoopChosser<>();
+
+    @Override
+    public RemoteEndpoint select(RemoteEndpoint[] remoteEndpoints) {
+        return loopChosser.choose(remoteEndpoints);
+    }
+}
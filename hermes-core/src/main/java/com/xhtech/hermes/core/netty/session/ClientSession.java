@@ -1,31 +1,42 @@
 package com.xhtech.hermes.core.netty.session;
 
-import com.xhtech.hermes.core.util.LoopChosser;
+import com.xhtech.hermes.core.netty.channel.LeastPendingChooser;
+import com.xhtech.hermes.core.netty.proto.AbstractProto;
 import com.xhtech.hermes.core.netty.proto.Proto;
+import com.xhtech.hermes.core.netty.channel.OutboundQueueHandler;
 import com.xhtech.hermes.core.netty.channel.SerialChannelPromise;
 import io.netty.channel.ChannelHandlerContext;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.net.InetSocketAddress;
+import java.util.Arrays;
 import java.util.Collections;
-import java.util.HashSet;
-import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.atomic.AtomicInteger;
 
 public class ClientSession extends Session {
 
     private static final Logger logger = LoggerFactory.getLogger(ClientSession.class);
 
-    private Set<ChannelHandlerContext> contexts = Collections.synchronizedSet(new HashSet<>());
+    private static final ChannelHandlerContext[] EMPTY_CONTEXTS = new ChannelHandlerContext[0];
 
-    private LoopChosser<ChannelHandlerContext> loopChosser = new LoopChosser<ChannelHandlerContext>();
+    /* 写时复制: 修改在session锁内生成新数组再发布, 发送时无锁读取 */
+    private volatile ChannelHandlerContext[] contexts = EMPTY_CONTEXTS;
+
+    private final LeastPendingChooser chooser = new LeastPendingChooser();
 
     private volatile boolean closed;
 
     private AtomicInteger hbTimes = new AtomicInteger(0);
 
+    private String appId;
+
+    /* 加入manager后计入的分组计数, 未加入时为null, 只在持有session锁时修改 */
+    private ClientSessionManager.Counter counter;
+
     public ClientSession(ChannelHandlerContext ctx, SessionManager manager) {
         super(manager);
         addContext(ctx);
@@ -45,10 +56,22 @@ public class ClientSession extends Session {
         synchronized (this) {
             if (!isClosed()) {
                 ctx.close();
-                contexts.remove(ctx);
-                loopChosser.setArray(contexts.toArray(new ChannelHandlerContext[]{}));
 
-                if (contexts.size() == 0) {
+                ChannelHandlerContext[] contexts = this.contexts;
+                int index = indexOf(contexts, ctx);
+
+                if (index >= 0) {
+                    ChannelHandlerContext[] newContexts = new ChannelHandlerContext[contexts.length - 1];
+                    System.arraycopy(contexts, 0, newContexts, 0, index);
+                    System.arraycopy(contexts, index + 1, newContexts, index, contexts.length - index - 1);
+                    this.contexts = newContexts;
+
+                    if (counter != null) {
+                        counter.add(0, -1);
+                    }
+                }
+
+                if (this.contexts.length == 0) {
                     closed = true;
                     expire();
                 }
@@ -59,61 +82,148 @@ public class ClientSession extends Session {
     public void close() {
         synchronized (this) {
             if (!isClosed()) {
-                ChannelHandlerContext ctx;
-                for (Iterator<ChannelHandlerContext> iterator = contexts.iterator(); iterator.hasNext(); ) {
-                    ctx = iterator.next();
+                ChannelHandlerContext[] contexts = this.contexts;
+
+                for (ChannelHandlerContext ctx : contexts) {
                     ctx.close();
                 }
 
-                contexts.clear();
-                loopChosser.setArray(contexts.toArray(new ChannelHandlerContext[]{}));
-
-                if (contexts.size() == 0) {
-                    closed = true;
-                    expire();
+                if (counter != null) {
+                    counter.add(0, -contexts.length);
                 }
+
+                this.contexts = EMPTY_CONTEXTS;
+                closed = true;
+                expire();
             }
         }
     }
 
     public void addContext(ChannelHandlerContext ctx) {
-        for (ChannelHandlerContext context : contexts) {
-            if (context.equals(ctx)) {
+        synchronized (this) {
+            ChannelHandlerContext[] contexts = this.contexts;
+
+            if (indexOf(contexts, ctx) >= 0) {
                 return;
             }
+
+            ChannelHandlerContext[] newContexts = Arrays.copyOf(contexts, contexts.length + 1);
+            newContexts[contexts.length] = ctx;
+            this.contexts = newContexts;
+
+            if (counter != null) {
+                counter.add(0, 1);
+            }
+        }
+    }
+
+    void attach(ClientSessionManager.Counter counter) {
+        synchronized (this) {
+            if (this.counter == null) {
+                this.counter = counter;
+                counter.add(1, contexts.length);
+            }
+        }
+    }
+
+    void detach() {
+        synchronized (this) {
+            if (counter != null) {
+                counter.add(-1, -contexts.length);
+                counter = null;
+            }
+        }
+    }
+
+    private static int indexOf(ChannelHandlerContext[] contexts, ChannelHandlerContext ctx) {
+        for (int i = 0; i < contexts.length; i++) {
+            if (contexts[i] == ctx) {
+                return i;
+            }
         }
 
-        contexts.add(ctx);
-        loopChosser.setArray(contexts.toArray(new ChannelHandlerContext[]{}));
+        return -1;
+    }
+
+    /**
+     * 优先选择可写且出站积压最少的连接
+     */
+    private ChannelHandlerContext choose() {
+        return chooser.choose(contexts);
     }
 
     public <T> T sendAndRecv(T t) {
         return sendAndRecv(t, SerialChannelPromise.DEFAULT_RECV_TIMEOUT);
     }
 
+    /**
+     * 消耗proto的一个引用, 没有写出时直接释放
+     */
     public boolean send(Proto proto) {
-        ChannelHandlerContext ctx = loopChosser.choose();
+        ChannelHandlerContext ctx = choose();
 
         if (ctx != null) {
+            OutboundQueueHandler queue = OutboundQueueHandler.get(ctx.channel());
+
+            if (queue != null && queue.isFull() && queue.getPolicy() == OutboundQueueHandler.OverflowPolicy.REJECT) {
+                AbstractProto.release(proto);
+                return false;
+            }
+
             ctx.writeAndFlush(proto);
             return true;
         } else {
+            AbstractProto.release(proto);
             return false;
         }
     }
 
     public <T> T sendAndRecv(T t, long timeout) {
-        ChannelHandlerContext context = loopChosser.choose();
+        ChannelHandlerContext context = choose();
         SerialChannelPromise<T> promise = new SerialChannelPromise(context.channel(), context.executor());
         return promise.writeAndFlush(t, timeout);
     }
 
+    public <T> CompletableFuture<T> sendAndRecvAsync(T t) {
+        return sendAndRecvAsync(t, SerialChannelPromise.DEFAULT_RECV_TIMEOUT);
+    }
+
+    public <T> CompletableFuture<T> sendAndRecvAsync(T t, long timeout) {
+        ChannelHandlerContext context = choose();
+
+        if (context == null) {
+            CompletableFuture<T> future = new CompletableFuture<>();
+            future.completeExceptionally(new IllegalStateException("Session is already closed."));
+            return future;
+        }
+
+        SerialChannelPromise<T> promise = new SerialChannelPromise(context.channel(), context.executor());
+        return promise.writeAndFlushAsync(t, timeout);
+    }
+
+    /**
+     * 消耗proto的一个引用, 每个连接的write各自retain一次
+     */
     public void sendAll(Proto proto) {
-        Set<ChannelHandlerContext> contexts = getContexts();
+        for (ChannelHandlerContext context : contexts) {
+            context.writeAndFlush(AbstractProto.retain(proto));
+        }
+
+        AbstractProto.release(proto);
+    }
+
+    /**
+     * 所有连接的出站队列中等待写出的消息数
+     */
+    public int getOutboundQueueDepth() {
+        int depth = 0;
 
         for (ChannelHandlerContext context : contexts) {
-            context.writeAndFlush(proto);
+            OutboundQueueHandler queue = OutboundQueueHandler.get(context.channel());
+            depth += queue != null ? queue.getDepth() : 0;
         }
+
+        return depth;
     }
 
     public boolean isClosed() {
@@ -125,15 +235,32 @@ public class ClientSession extends Session {
     }
 
     public InetSocketAddress getRemoteAddress() {
-        if (contexts.size() == 0) {
+        ChannelHandlerContext[] contexts = this.contexts;
+
+        if (contexts.length == 0) {
             throw new IllegalStateException("Session is already closed.");
         }
 
-        return (InetSocketAddress) contexts.iterator().next().channel().remoteAddress();
+        return (InetSocketAddress) contexts[0].channel().remoteAddress();
     }
 
+    /**
+     * 当前连接的只读快照
+     */
     public Set<ChannelHandlerContext> getContexts() {
-        return contexts;
+        return Collections.unmodifiableSet(new LinkedHashSet<>(Arrays.asList(contexts)));
+    }
+
+    public int getContextCount() {
+        return contexts.length;
+    }
+
+    public String getAppId() {
+        return appId;
+    }
+
+    public void setAppId(String appId) {
+        this.appId = appId;
     }
 
     public int heartbeat() {
@@ -142,6 +269,6 @@ public class ClientSession extends Session {
 
     @Override
     public String toString() {
-        return String.format("ClientSession {hbTimes = %d, isClosed = %b, context size = %d}", hbTimes.get(), closed, contexts.size());
+        return String.format("ClientSession {hbTimes = %d, isClosed = %b, context size = %d}", hbTimes.get(), closed, contexts.length);
     }
 }
@@ -1,11 +1,25 @@
 package com.xhtech.hermes.core.netty.session;
 
+import com.xhtech.hermes.core.netty.proto.AbstractProto;
+import com.xhtech.hermes.core.netty.proto.Proto;
 import io.netty.channel.ChannelHandlerContext;
 
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
 import static com.xhtech.hermes.core.netty.handler.NettyHandler.KEY_SESSION;
 
 public class ClientSessionManager extends SessionManager {
 
+    /* 未设置appId的session计入该分组 */
+    public static final String DEFAULT_APP_ID = "";
+
+    private final Counter total = new Counter(null);
+
+    private final Map<String, Counter> counters = new ConcurrentHashMap<>();
+
     public ClientSession create(ChannelHandlerContext ctx) {
         ClientSession session = new ClientSession(ctx, this);
         session.setMaxInactiveInterval(getMaxInactiveInterval());
@@ -17,10 +31,18 @@ public class ClientSessionManager extends SessionManager {
     }
 
     public ClientSession createSession(ChannelHandlerContext ctx, String id, SessionListener sessionListener) {
+        return createSession(ctx, id, null, sessionListener);
+    }
+
+    /**
+     * @param appId session所属的应用, 在线数按appId分组统计
+     */
+    public ClientSession createSession(ChannelHandlerContext ctx, String id, String appId, SessionListener sessionListener) {
         ClientSession session;
 
         if ((session = get(id)) == null) {
             session = create(ctx);
+            session.setAppId(appId);
             session.addListener(sessionListener);
             session.setId(id);
         } else {
@@ -36,7 +58,96 @@ public class ClientSessionManager extends SessionManager {
         return (ClientSession) super.get(clientId);
     }
 
+    @Override
+    protected void added(Session session) {
+        ((ClientSession) session).attach(counter(((ClientSession) session).getAppId()));
+    }
+
+    @Override
+    protected void removed(Session session) {
+        ((ClientSession) session).detach();
+    }
+
+    private Counter counter(String appId) {
+        return counters.computeIfAbsent(appId != null ? appId : DEFAULT_APP_ID, key -> new Counter(total));
+    }
+
+    /**
+     * 在线连接数
+     */
     public int getActiveCount() {
-        return getSessions().stream().mapToInt(session -> ((ClientSession) session).getContexts().size()).sum();
+        return (int) total.getConnections();
+    }
+
+    public int getActiveCount(String appId) {
+        Counter counter = counters.get(appId != null ? appId : DEFAULT_APP_ID);
+        return counter != null ? (int) counter.getConnections() : 0;
+    }
+
+    /**
+     * 在线session数
+     */
+    public long getSessionCount() {
+        return total.getSessions();
+    }
+
+    public long getSessionCount(String appId) {
+        Counter counter = counters.get(appId != null ? appId : DEFAULT_APP_ID);
+        return counter != null ? counter.getSessions() : 0;
+    }
+
+    /**
+     * 按appId分组的计数
+     */
+    public Map<String, Counter> getCounters() {
+        return Collections.unmodifiableMap(counters);
+    }
+
+    /**
+     * 按分片并行向所有session的所有连接发送
+     */
+    public void sendAll(Proto proto) {
+        forEach(session -> ((ClientSession) session).sendAll(AbstractProto.retain(proto)));
+        AbstractProto.release(proto);
+    }
+
+    public static class Counter {
+
+        private final Counter parent;
+
+        private final LongAdder sessions = new LongAdder();
+
+        private final LongAdder connections = new LongAdder();
+
+        Counter(Counter parent) {
+            this.parent = parent;
+        }
+
+        void add(int sessions, int connections) {
+            if (sessions != 0) {
+                this.sessions.add(sessions);
+            }
+
+            if (connections != 0) {
+                this.connections.add(connections);
+            }
+
+            if (parent != null) {
+                parent.add(sessions, connections);
+            }
+        }
+
+        public long getSessions() {
+            return sessions.sum();
+        }
+
+        public long getConnections() {
+            return connections.sum();
+        }
+
+        @Override
+        public String toString() {
+            return String.format("Counter {sessions = %d, connections = %d}", getSessions(), getConnections());
+        }
     }
 }
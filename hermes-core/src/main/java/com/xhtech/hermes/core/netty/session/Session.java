@@ -1,12 +1,18 @@
 package com.xhtech.hermes.core.netty.session;
 
+import com.xhtech.hermes.core.util.CoarseClock;
 import io.netty.util.DefaultAttributeMap;
 
-import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
 
 public class Session extends DefaultAttributeMap {
 
+    static final AtomicIntegerFieldUpdater<Session> SCHEDULED_UPDATER = AtomicIntegerFieldUpdater.newUpdater(Session.class, "scheduled");
+
+    static final AtomicIntegerFieldUpdater<Session> ACTIVE_PENDING_UPDATER = AtomicIntegerFieldUpdater.newUpdater(Session.class, "activePending");
+
     protected String id;
 
     private volatile long creationTime;
@@ -17,10 +23,28 @@ public class Session extends DefaultAttributeMap {
 
     protected volatile boolean invalid;
 
-    private List<SessionListener> listeners;
+    private volatile List<SessionListener> listeners;
+
+    /* 是否有处理active事件的监听器 */
+    private volatile boolean activeAware;
 
     protected SessionManager manager;
 
+    /* 时间轮中同一个槽的下一个session, 只在SessionTimingWheel中访问 */
+    Session wheelNext;
+
+    /* 是否已在时间轮中 */
+    volatile int scheduled;
+
+    /* 派发栈中的下一个session, 只在SessionActiveDispatcher中访问 */
+    Session activeNext;
+
+    /* 是否在等待派发active事件 */
+    volatile int activePending;
+
+    /* 最后一次active的data */
+    volatile Object activeData;
+
     public Session(SessionManager manager) {
         this(null, manager);
     }
@@ -30,7 +54,7 @@ public class Session extends DefaultAttributeMap {
         accessTime = creationTime;
         maxInactiveInterval = -1;
         invalid = false;
-        listeners = new LinkedList<>();
+        listeners = new CopyOnWriteArrayList<>();
         this.manager = manager;
 
         if (id != null) {
@@ -39,7 +63,7 @@ public class Session extends DefaultAttributeMap {
     }
 
     protected long getIdleTimeInternal() {
-        long timeNow = System.currentTimeMillis();
+        long timeNow = CoarseClock.currentTimeMillis();
         long timeIdle = timeNow - accessTime;
         return timeIdle;
     }
@@ -54,8 +78,23 @@ public class Session extends DefaultAttributeMap {
         active(null);
     }
 
+    /**
+     * 更新最后活跃时间, 没有处理active事件的监听器(见SessionListener.activeAware)时只是一次volatile写;
+     * 否则active事件由SessionActiveDispatcher批量异步派发, 同一批中多次active合并为一个事件, data为最后一次的值
+     */
     public void active(Object data) {
-        accessTime = System.currentTimeMillis();
+        accessTime = CoarseClock.currentTimeMillis();
+
+        if (activeAware) {
+            activeData = data;
+            SessionActiveDispatcher.get().dispatch(this);
+        }
+    }
+
+    void fireActive(Object data) {
+        if (invalid) {
+            return;
+        }
 
         SessionEvent event = new SessionEvent(this);
         event.type = SessionEventType.ACTIVE;
@@ -107,23 +146,32 @@ public class Session extends DefaultAttributeMap {
             creationTime = 0L;
             accessTime = 0L;
             listeners = null;
+            activeAware = false;
             maxInactiveInterval = 1L;
+            activeData = null;
             invalid = true;
             manager = null;
         }
     }
 
-    public void addListener(SessionListener sessionListener) {
+    public synchronized void addListener(SessionListener sessionListener) {
         if (sessionListener != null) {
             listeners.add(sessionListener);
+            activeAware |= sessionListener.activeAware();
         }
     }
 
-    public void removeListener(SessionListener sessionListener) {
-        listeners.remove(sessionListener);
+    public synchronized void removeListener(SessionListener sessionListener) {
+        List<SessionListener> listeners = this.listeners;
+
+        if (listeners != null && listeners.remove(sessionListener)) {
+            activeAware = listeners.stream().anyMatch(SessionListener::activeAware);
+        }
     }
 
     protected void fireSessionListener(SessionEvent event) {
+        List<SessionListener> listeners = this.listeners;
+
         if (listeners != null) {
             for (SessionListener listener : listeners) {
                 if (event.type == SessionEventType.CREATED) {
@@ -163,5 +211,15 @@ public class Session extends DefaultAttributeMap {
 
     public void setMaxInactiveInterval(long maxInactiveInterval) {
         this.maxInactiveInterval = maxInactiveInterval;
+
+        SessionManager manager = this.manager;
+
+        if (maxInactiveInterval > 0 && manager != null && id != null) {
+            manager.schedule(this);
+        }
+    }
+
+    long getAccessTime() {
+        return accessTime;
     }
 }
\ No newline at end of file
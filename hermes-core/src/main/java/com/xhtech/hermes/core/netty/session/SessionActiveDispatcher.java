@@ -0,0 +1,84 @@
+package com.xhtech.hermes.core.netty.session;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 批量异步派发active事件: active()只把session压入无锁栈(侵入式, 不分配节点), 同一个session在一批中只入栈一次;
+ * 派发线程每BATCH_INTERVAL取出整批, 每个session触发一次active事件, 携带最后一次active的data
+ */
+class SessionActiveDispatcher {
+
+    private static final Logger logger = LoggerFactory.getLogger(SessionActiveDispatcher.class);
+
+    public static final long BATCH_INTERVAL = 10;
+
+    private static final SessionActiveDispatcher INSTANCE = new SessionActiveDispatcher();
+
+    private final AtomicReference<Session> pending = new AtomicReference<>();
+
+    private SessionActiveDispatcher() {
+        Thread thread = new Thread(this::run, "session-active-dispatcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    static SessionActiveDispatcher get() {
+        return INSTANCE;
+    }
+
+    void dispatch(Session session) {
+        if (!Session.ACTIVE_PENDING_UPDATER.compareAndSet(session, 0, 1)) {
+            return;
+        }
+
+        Session head;
+
+        do {
+            head = pending.get();
+            session.activeNext = head;
+        } while (!pending.compareAndSet(head, session));
+    }
+
+    private void run() {
+        for (; ; ) {
+            Session session = reverse(pending.getAndSet(null));
+
+            while (session != null) {
+                Session next = session.activeNext;
+                session.activeNext = null;
+
+                /* 先清除标记再读取data, 之后的active会重新入栈, 不会丢失 */
+                session.activePending = 0;
+
+                try {
+                    session.fireActive(session.activeData);
+                } catch (Throwable e) {
+                    logger.error(e.getMessage(), e);
+                }
+
+                session = next;
+            }
+
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(BATCH_INTERVAL));
+        }
+    }
+
+    /* 栈是后进先出, 反转后按active的先后派发 */
+    private Session reverse(Session head) {
+        Session prev = null;
+
+        while (head != null) {
+            Session next = head.activeNext;
+            head.activeNext = prev;
+            prev = head;
+            head = next;
+        }
+
+        return prev;
+    }
+}
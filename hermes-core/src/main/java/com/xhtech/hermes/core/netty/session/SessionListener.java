@@ -11,6 +11,7 @@ public interface SessionListener {
 
     /**
      * 当调用session.active方法时触发active事件, 结束时event中的session属性被销毁
+     * 事件在session-active-dispatcher线程中批量异步触发, 同一批中的多次active只触发一次
      *
      * @param event
      */
@@ -25,4 +26,12 @@ public interface SessionListener {
      * @param event
      */
     void destroy(SessionEvent event);
+
+    /**
+     * 是否处理active事件, 只关心created/destroy的监听器应返回false;
+     * session上没有处理active事件的监听器时, active()只更新活跃时间, 不派发事件
+     */
+    default boolean activeAware() {
+        return true;
+    }
 }
@@ -5,20 +5,53 @@ import org.slf4j.LoggerFactory;
 
 import java.lang.reflect.Constructor;
 import java.lang.reflect.InvocationTargetException;
+import java.util.AbstractCollection;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Consumer;
+import java.util.function.ToLongFunction;
 
+/**
+ * session按id的hash分布到多个分片, 每个分片有独立的map和过期时间轮,
+ * 过期检查、计数、遍历等批量操作按分片在ForkJoinPool上并行执行
+ */
 public class SessionManager {
 
     private static final Logger logger = LoggerFactory.getLogger(SessionManager.class);
 
+    public static final int DEFAULT_SHARDS = Runtime.getRuntime().availableProcessors() * 2;
+
     private int maxInactiveInterval = 0;
 
-    private Map<String, Session> sessions = new ConcurrentHashMap<String, Session>();
+    private final Shard[] shards;
+
+    private ForkJoinPool pool = ForkJoinPool.commonPool();
+
+    private final Collection<Session> sessions = new Sessions();
 
     public SessionManager() {
+        this(SessionTimingWheel.DEFAULT_TICK);
+    }
+
+    /**
+     * @param tick 时间轮的精度(毫秒), session最多晚一个tick过期
+     */
+    public SessionManager(long tick) {
+        this(DEFAULT_SHARDS, tick);
+    }
+
+    public SessionManager(int shards, long tick) {
+        this.shards = new Shard[Math.max(shards, 1)];
+
+        for (int i = 0; i < this.shards.length; i++) {
+            this.shards[i] = new Shard(new SessionTimingWheel(this, tick));
+        }
     }
 
     public Session create(String id) {
@@ -57,27 +90,44 @@ public class SessionManager {
     }
 
     public Session get(String id) {
-        return sessions.get(id);
+        return shard(id).sessions.get(id);
     }
 
+    /**
+     * 推进过期时间轮, 只检查到期槽中的session, 调用间隔不影响准确性, 越接近tick过期越及时
+     */
     public void processExpires() {
-        Session session;
+        processExpires(System.currentTimeMillis());
+    }
 
-        for (Iterator<Session> iterable = getSessions().iterator(); iterable.hasNext(); ) {
-            session = iterable.next();
-            if (session.invalid()) {
-                session.expire();
-            }
-        }
+    void processExpires(long now) {
+        parallel(shard -> shard.wheel.advance(now));
+    }
+
+    void schedule(Session session) {
+        shard(session.getId()).wheel.schedule(session);
     }
 
     public boolean has(String id) {
-        return sessions.containsKey(id);
+        return shard(id).sessions.containsKey(id);
     }
 
     public void add(Session session) {
         logger.debug("add session, id:{}", session.getId());
-        sessions.put(session.getId(), session);
+        Shard shard = shard(session.getId());
+        Session previous = shard.sessions.put(session.getId(), session);
+
+        if (previous != session) {
+            if (previous != null) {
+                removed(previous);
+            }
+
+            added(session);
+        }
+
+        if (session.getMaxInactiveInterval() > 0) {
+            shard.wheel.schedule(session);
+        }
     }
 
     public void remove(Session session) {
@@ -87,20 +137,89 @@ public class SessionManager {
 
     public void remove(String id) {
         logger.debug("remove session by id, id:{}", id);
-        sessions.remove(id);
+        Session session = shard(id).sessions.remove(id);
+
+        if (session != null) {
+            removed(session);
+        }
+    }
+
+    /**
+     * session加入后回调, 用于维护计数
+     */
+    protected void added(Session session) {
+    }
+
+    /**
+     * session移除后回调
+     */
+    protected void removed(Session session) {
     }
 
+    /**
+     * 所有分片的session视图, 逐个分片遍历
+     */
     public Collection<Session> getSessions() {
-        return sessions.values();
+        return sessions;
+    }
+
+    /**
+     * 按分片并行遍历所有session
+     */
+    public void forEach(Consumer<? super Session> action) {
+        parallel(shard -> shard.sessions.values().forEach(action));
+    }
+
+    /**
+     * 按分片并行求和
+     */
+    public long sum(ToLongFunction<? super Session> function) {
+        return pool.submit(() -> Arrays.stream(shards).parallel()
+                .mapToLong(shard -> shard.sessions.values().stream().mapToLong(function).sum())
+                .sum()).join();
     }
 
     public void clean() {
         logger.debug("clear session");
-        sessions.clear();
+
+        for (Shard shard : shards) {
+            for (String id : shard.sessions.keySet()) {
+                remove(id);
+            }
+        }
     }
 
     public int size() {
-        return sessions.size();
+        int size = 0;
+
+        for (Shard shard : shards) {
+            size += shard.sessions.size();
+        }
+
+        return size;
+    }
+
+    public int getShards() {
+        return shards.length;
+    }
+
+    public ForkJoinPool getPool() {
+        return pool;
+    }
+
+    public void setPool(ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    private Shard shard(String id) {
+        int h = id.hashCode();
+        h ^= h >>> 16;
+        return shards[(h & Integer.MAX_VALUE) % shards.length];
+    }
+
+    /* 在pool中提交的并行流会使用该pool的线程 */
+    private void parallel(Consumer<Shard> action) {
+        pool.submit(() -> Arrays.stream(shards).parallel().forEach(action)).join();
     }
 
     public int getMaxInactiveInterval() {
@@ -110,4 +229,63 @@ public class SessionManager {
     public void setMaxInactiveInterval(int maxInactiveInterval) {
         this.maxInactiveInterval = maxInactiveInterval;
     }
+
+    private static class Shard {
+
+        final Map<String, Session> sessions = new ConcurrentHashMap<>();
+
+        final SessionTimingWheel wheel;
+
+        Shard(SessionTimingWheel wheel) {
+            this.wheel = wheel;
+        }
+    }
+
+    private class Sessions extends AbstractCollection<Session> {
+
+        @Override
+        public Iterator<Session> iterator() {
+            return new Iterator<Session>() {
+
+                int index;
+
+                Iterator<Session> current = Collections.emptyIterator();
+
+                Session last;
+
+                @Override
+                public boolean hasNext() {
+                    while (!current.hasNext() && index < shards.length) {
+                        current = shards[index++].sessions.values().iterator();
+                    }
+
+                    return current.hasNext();
+                }
+
+                @Override
+                public Session next() {
+                    if (!hasNext()) {
+                        throw new NoSuchElementException();
+                    }
+
+                    return last = current.next();
+                }
+
+                @Override
+                public void remove() {
+                    if (last == null) {
+                        throw new IllegalStateException();
+                    }
+
+                    SessionManager.this.remove(last.getId());
+                    last = null;
+                }
+            };
+        }
+
+        @Override
+        public int size() {
+            return SessionManager.this.size();
+        }
+    }
 }
@@ -0,0 +1,142 @@
+package com.xhtech.hermes.core.netty.session;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * session过期的分层时间轮: 每层64个槽, 第0层一个槽为一个tick, 上一层一个槽为下一层一圈,
+ * session按过期时间挂在对应层的槽上(侵入式单链表, 不分配节点)
+ * <p>
+ * active()只更新访问时间, 不移动session; 槽到期时重新计算过期时间, 未过期的挂到新的槽上, 已过期的执行expire,
+ * 每个session在一个过期周期内最多被检查一次, 每个tick只处理到期的槽, 与存活的session总数无关
+ * <p>
+ * 其他线程通过schedule把session放入无锁的pending栈, 时间轮本身只在advance中(持有锁)修改
+ */
+class SessionTimingWheel {
+
+    public static final long DEFAULT_TICK = 1000;
+
+    private static final int BITS = 6;
+
+    private static final int SLOTS = 1 << BITS;
+
+    private static final int MASK = SLOTS - 1;
+
+    private static final int LEVELS = 4;
+
+    private final SessionManager manager;
+
+    private final long tick;
+
+    private final Session[][] buckets = new Session[LEVELS][SLOTS];
+
+    private final AtomicReference<Session> pending = new AtomicReference<>();
+
+    private long currentTick;
+
+    SessionTimingWheel(SessionManager manager, long tick) {
+        this.manager = manager;
+        this.tick = tick;
+        this.currentTick = System.currentTimeMillis() / tick;
+    }
+
+    /**
+     * 把session加入时间轮, 已在时间轮中时忽略
+     */
+    void schedule(Session session) {
+        if (!Session.SCHEDULED_UPDATER.compareAndSet(session, 0, 1)) {
+            return;
+        }
+
+        Session head;
+
+        do {
+            head = pending.get();
+            session.wheelNext = head;
+        } while (!pending.compareAndSet(head, session));
+    }
+
+    /**
+     * 推进时间轮到now, 处理期间到期的槽
+     */
+    synchronized void advance(long now) {
+        drainPending();
+
+        long nowTick = now / tick;
+
+        while (currentTick < nowTick) {
+            long t = ++currentTick;
+
+            /* 先从高层往低层降级, 再处理第0层到期的槽 */
+            for (int level = LEVELS - 1; level > 0; level--) {
+                if ((t & ((1L << (BITS * level)) - 1)) == 0) {
+                    reschedule(take(level, (int) ((t >>> (BITS * level)) & MASK)));
+                }
+            }
+
+            reschedule(take(0, (int) (t & MASK)));
+        }
+    }
+
+    private void drainPending() {
+        reschedule(pending.getAndSet(null));
+    }
+
+    private Session take(int level, int slot) {
+        Session head = buckets[level][slot];
+        buckets[level][slot] = null;
+        return head;
+    }
+
+    private void reschedule(Session session) {
+        while (session != null) {
+            Session next = session.wheelNext;
+            session.wheelNext = null;
+            place(session);
+            session = next;
+        }
+    }
+
+    private void place(Session session) {
+        long interval = session.getMaxInactiveInterval();
+
+        if (session.invalid || interval <= 0 || !isManaged(session)) {
+            session.scheduled = 0;
+
+            /* 离开时间轮的同时被重新设置了超时时间, 此时schedule已经因为scheduled=1而忽略, 需要自行放回 */
+            if (!session.invalid && session.getMaxInactiveInterval() > 0 && isManaged(session)) {
+                schedule(session);
+            }
+
+            return;
+        }
+
+        long deadline = (session.getAccessTime() + interval * 1000L + tick - 1) / tick;
+        long delta = deadline - currentTick;
+
+        if (delta <= 0) {
+            session.scheduled = 0;
+            session.expire();
+            return;
+        }
+
+        int level = 0;
+
+        while (level < LEVELS - 1 && (deadline >>> (BITS * level)) - (currentTick >>> (BITS * level)) >= SLOTS) {
+            level++;
+        }
+
+        /* 超出最高层一圈的放到最高层最远的槽, 到期时再重新计算 */
+        if ((deadline >>> (BITS * level)) - (currentTick >>> (BITS * level)) >= SLOTS) {
+            deadline = ((currentTick >>> (BITS * level)) + SLOTS - 1) << (BITS * level);
+        }
+
+        int slot = (int) ((deadline >>> (BITS * level)) & MASK);
+        session.wheelNext = buckets[level][slot];
+        buckets[level][slot] = session;
+    }
+
+    private boolean isManaged(Session session) {
+        String id = session.getId();
+        return id != null && manager.get(id) == session;
+    }
+}
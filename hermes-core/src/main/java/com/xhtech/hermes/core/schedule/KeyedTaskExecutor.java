@@ -0,0 +1,344 @@
+package com.xhtech.hermes.core.schedule;
+
+import com.xhtech.hermes.core.util.MpmcArrayQueue;
+import com.xhtech.hermes.core.util.VirtualThreads;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.core.task.TaskRejectedException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 按key有序执行的调度器: key按hash映射到固定的lane, 每个lane一个消费线程,
+ * 相同key的任务按投递顺序串行执行, 不同key的任务在多个lane上并行执行
+ * lane的队列为无锁环形数组, 队列深度超过hotThreshold时记录告警, 用于发现集中在少数key上的热点
+ * 设置水位后, lane的深度达到高水位即进入饱和状态, 降到低水位以下时恢复, 状态变化时通知该lane的SaturationListener;
+ * 整体的SaturationListener在第一个lane饱和、最后一个lane恢复时通知
+ * shutdown后各lane执行完队列中已有的任务再退出
+ */
+public class KeyedTaskExecutor {
+
+    private static final Logger logger = LoggerFactory.getLogger(KeyedTaskExecutor.class);
+
+    public static final int DEFAULT_LANE_CAPACITY = 1 << 14;
+
+    private static final int SPIN_TRIES = 100;
+
+    private static final int YIELD_TRIES = 10;
+
+    private final String name;
+
+    private final Lane[] lanes;
+
+    private final int hotThreshold;
+
+    private volatile boolean running = true;
+
+    private volatile int highWatermark = -1;
+
+    private volatile int lowWatermark = -1;
+
+    /* 达到高水位还未恢复的lane数 */
+    private final AtomicInteger saturatedLanes = new AtomicInteger();
+
+    private final List<TaskQueueScheduler.SaturationListener> saturationListeners = new CopyOnWriteArrayList<>();
+
+    private final LongAdder rejected = new LongAdder();
+
+    public KeyedTaskExecutor(int lanes, String name) {
+        this(lanes, DEFAULT_LANE_CAPACITY, name);
+    }
+
+    public KeyedTaskExecutor(int lanes, int laneCapacity, String name) {
+        this(lanes, laneCapacity, name, false);
+    }
+
+    /**
+     * virtualThreads为true且JDK支持虚拟线程时, lane的消费线程使用虚拟线程
+     */
+    public KeyedTaskExecutor(int lanes, int laneCapacity, String name, boolean virtualThreads) {
+        this.name = name;
+        this.lanes = new Lane[lanes];
+        this.hotThreshold = Math.max(laneCapacity / 2, 1);
+
+        ThreadFactory factory = virtualThreads ? VirtualThreads.threadFactory(name + "-lane-vthread-") : null;
+
+        for (int i = 0; i < lanes; i++) {
+            this.lanes[i] = new Lane(i, laneCapacity, factory);
+        }
+    }
+
+    /**
+     * 在key对应的lane上执行任务, lane的队列已满或已经shutdown时抛出TaskRejectedException
+     */
+    public void execute(Object key, Task task) throws TaskRejectedException {
+        if (!running) {
+            throw new TaskRejectedException(name + " is shutdown");
+        }
+
+        Lane lane = lanes[lane(key)];
+        task.enqueueTime = System.nanoTime();
+
+        if (!lane.queue.offer(task)) {
+            rejected.increment();
+
+            /* 按1,2,4,8...的间隔记录, 避免持续满载时刷屏 */
+            long count = rejected.sum();
+            if ((count & (count - 1)) == 0) {
+                logger.warn("{} lane {} is full, {} tasks rejected [key = {}]", name, lane.index, count, key);
+            }
+
+            throw new TaskRejectedException("The lane " + lane.index + " is full");
+        }
+
+        lane.submitted.increment();
+        lane.signal();
+        checkSaturated(lane);
+
+        if (!lane.hot && lane.queue.size() >= hotThreshold) {
+            lane.hot = true;
+            logger.warn("{} lane {} is hot [size = {}, key = {}, share = {}%]", name, lane.index, lane.queue.size(), key, String.format("%.1f", share(lane) * 100));
+        }
+    }
+
+    public int lane(Object key) {
+        int h = key == null ? 0 : key.hashCode();
+        h ^= h >>> 16;
+        return (h & Integer.MAX_VALUE) % lanes.length;
+    }
+
+    /**
+     * 设置每个lane的饱和水位, -1表示不检测
+     */
+    public void setWatermarks(int lowWatermark, int highWatermark) {
+        this.lowWatermark = lowWatermark;
+        this.highWatermark = highWatermark;
+    }
+
+    public void addSaturationListener(TaskQueueScheduler.SaturationListener listener) {
+        saturationListeners.add(listener);
+    }
+
+    public void removeSaturationListener(TaskQueueScheduler.SaturationListener listener) {
+        saturationListeners.remove(listener);
+    }
+
+    /**
+     * 只关注指定lane饱和状态变化的listener
+     */
+    public void addSaturationListener(int lane, TaskQueueScheduler.SaturationListener listener) {
+        lanes[lane].saturationListeners.add(listener);
+    }
+
+    /**
+     * 是否有lane处于饱和状态
+     */
+    public boolean isSaturated() {
+        return saturatedLanes.get() > 0;
+    }
+
+    /**
+     * key对应的lane是否处于饱和状态
+     */
+    public boolean isSaturated(Object key) {
+        return isLaneSaturated(lane(key));
+    }
+
+    public boolean isLaneSaturated(int lane) {
+        return lanes[lane].saturated.get();
+    }
+
+    private void checkSaturated(Lane lane) {
+        int high = highWatermark;
+
+        if (high >= 0 && !lane.saturated.get() && lane.queue.size() >= high && lane.saturated.compareAndSet(false, true)) {
+            lane.saturationListeners.forEach(TaskQueueScheduler.SaturationListener::onSaturated);
+
+            if (saturatedLanes.getAndIncrement() == 0) {
+                logger.warn("{} is saturated [lane = {}, size = {}]", name, lane.index, lane.queue.size());
+                saturationListeners.forEach(TaskQueueScheduler.SaturationListener::onSaturated);
+            }
+        }
+    }
+
+    private void checkDrained(Lane lane) {
+        if (!lane.saturated.get()) {
+            return;
+        }
+
+        int size = lane.queue.size();
+
+        if ((size <= lowWatermark || size == 0) && lane.saturated.compareAndSet(true, false)) {
+            lane.saturationListeners.forEach(TaskQueueScheduler.SaturationListener::onDrained);
+
+            if (saturatedLanes.decrementAndGet() == 0) {
+                logger.info("{} is drained [lane = {}]", name, lane.index);
+                saturationListeners.forEach(TaskQueueScheduler.SaturationListener::onDrained);
+            }
+        }
+    }
+
+    public long getRejected() {
+        return rejected.sum();
+    }
+
+    public int size() {
+        int size = 0;
+
+        for (Lane lane : lanes) {
+            size += lane.queue.size();
+        }
+
+        return size;
+    }
+
+    public int getLanes() {
+        return lanes.length;
+    }
+
+    public int getDepth(int lane) {
+        return lanes[lane].queue.size();
+    }
+
+    public long getSubmitted(int lane) {
+        return lanes[lane].submitted.sum();
+    }
+
+    /**
+     * 当前队列深度超过hotThreshold的lane
+     */
+    public List<Integer> hotLanes() {
+        List<Integer> hot = new ArrayList<>();
+
+        for (Lane lane : lanes) {
+            if (lane.queue.size() >= hotThreshold) {
+                hot.add(lane.index);
+            }
+        }
+
+        return hot;
+    }
+
+    /**
+     * lane累计投递的任务数占全部任务数的比例
+     */
+    private double share(Lane lane) {
+        long total = 0;
+
+        for (Lane l : lanes) {
+            total += l.submitted.sum();
+        }
+
+        return total > 0 ? (double) lane.submitted.sum() / total : 0;
+    }
+
+    public void shutdown() {
+        running = false;
+
+        for (Lane lane : lanes) {
+            LockSupport.unpark(lane.thread);
+        }
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    private class Lane implements Runnable {
+
+        final int index;
+
+        final MpmcArrayQueue<Task> queue;
+
+        final LongAdder submitted = new LongAdder();
+
+        final Thread thread;
+
+        volatile boolean waiting;
+
+        volatile boolean hot;
+
+        final AtomicBoolean saturated = new AtomicBoolean();
+
+        final List<TaskQueueScheduler.SaturationListener> saturationListeners = new CopyOnWriteArrayList<>();
+
+        Lane(int index, int capacity, ThreadFactory factory) {
+            this.index = index;
+            this.queue = new MpmcArrayQueue<>(capacity);
+
+            if (factory != null) {
+                this.thread = factory.newThread(this);
+            } else {
+                this.thread = new Thread(this, name + "-lane-" + index);
+                this.thread.setDaemon(true);
+            }
+
+            this.thread.start();
+        }
+
+        /* offer之后检查waiting, 与run中先置waiting再检查队列相对应, 不会丢失唤醒 */
+        void signal() {
+            if (waiting) {
+                LockSupport.unpark(thread);
+            }
+        }
+
+        @Override
+        public void run() {
+            int tries = 0;
+
+            for (; ; ) {
+                Task task = queue.poll();
+
+                if (task != null) {
+                    tries = 0;
+                    checkDrained(this);
+
+                    try {
+                        task.execute();
+                    } catch (Throwable e) {
+                        logger.error(e.getMessage(), e);
+                    }
+
+                    continue;
+                }
+
+                if (hot) {
+                    hot = false;
+                }
+
+                /* 队列为空时直接恢复, 覆盖投递方在消费线程检查之后才置为饱和的情况 */
+                checkDrained(this);
+
+                if (!running && queue.isEmpty()) {
+                    break;
+                }
+
+                if (tries < SPIN_TRIES) {
+                    tries++;
+                } else if (tries < SPIN_TRIES + YIELD_TRIES) {
+                    tries++;
+                    Thread.yield();
+                } else {
+                    waiting = true;
+
+                    if (queue.isEmpty() && running) {
+                        LockSupport.parkNanos(this, TimeUnit.SECONDS.toNanos(1));
+                    }
+
+                    waiting = false;
+                }
+            }
+
+            logger.warn("{}[{}] is shutdown", name, Thread.currentThread().getName());
+        }
+    }
+}
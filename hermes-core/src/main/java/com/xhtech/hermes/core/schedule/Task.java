@@ -2,18 +2,31 @@ package com.xhtech.hermes.core.schedule;
 
 import com.xhtech.hermes.commons.util.UUIDUtil;
 
-import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
 
 public abstract class Task {
 
+    private static final AtomicIntegerFieldUpdater<Task> INVALID_UPDATER = AtomicIntegerFieldUpdater.newUpdater(Task.class, "invalid");
+
     private String id;
 
     private boolean success = false;
 
-    private AtomicBoolean invalid = new AtomicBoolean(false);
+    private volatile int invalid = 0;
+
+    /* 入队时间, 用于统计排队延迟 */
+    volatile long enqueueTime;
 
     public abstract void execute();
 
+    /**
+     * 去重的key, 队列中已有相同key的任务时不再入队, null表示不去重
+     * 调度器不再按id()去重, 需要按id去重或用getQueueingTask查找的任务应重写为返回id()
+     */
+    public Object key() {
+        return null;
+    }
+
     public String id() {
         if (id == null) {
             id = UUIDUtil.genId();
@@ -21,8 +34,14 @@ public abstract class Task {
         return id;
     }
 
+    /**
+     * 任务在队列中被丢弃(未执行)时调用, 用于释放任务持有的资源
+     */
+    public void discard() {
+    }
+
     public Task expire() {
-        return invalid.compareAndSet(false, true) ? this : null;
+        return INVALID_UPDATER.compareAndSet(this, 0, 1) ? this : null;
     }
 
     public boolean success() {
@@ -1,33 +1,59 @@
 package com.xhtech.hermes.core.schedule;
 
+import com.xhtech.hermes.core.util.MpmcArrayQueue;
+import com.xhtech.hermes.core.util.VirtualThreads;
 import org.apache.commons.lang3.concurrent.BasicThreadFactory;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.core.task.TaskRejectedException;
 
+import java.util.List;
 import java.util.Map;
+import java.util.Queue;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicBoolean;
-
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 任务队列调度器: 多个线程投递任务, poolSize个消费线程按顺序执行
+ * 队列为有界的无锁环形数组(MpmcArrayQueue), 消费线程空闲时先自旋、让出CPU, 再park等待生产者唤醒
+ * 只有提供了key()的任务才会去重
+ * 虚拟线程模式下消费线程为虚拟线程, poolSize即同时执行的任务数上限, 适合有阻塞IO的任务
+ */
 public class TaskQueueScheduler {
 
     private final Logger logger = LoggerFactory.getLogger(TaskQueueScheduler.class);
 
     public static final int DEFAULT_EVENT_LOOP_THREADS = Runtime.getRuntime().availableProcessors() * 2;
 
-    private static final StopTask STOP_TASK = new StopTask();
-
     private static final String DEFAULT_NAME = TaskQueueScheduler.class.getSimpleName();
 
+    /* queueSize为-1时队列的容量 */
+    public static final int DEFAULT_QUEUE_CAPACITY = 1 << 18;
+
+    private static final int SPIN_TRIES = 100;
+
+    private static final int YIELD_TRIES = 10;
+
     private String name;
 
     private int queueSize = -1;
 
     private int poolSize = 0;
 
-    private LinkedBlockingDeque<Task> queue;
+    private boolean virtualThreads;
 
-    private Map<String, Task> queueing = new ConcurrentHashMap<>();
+    private MpmcArrayQueue<Task> queue;
+
+    /* addFirst投递的任务, 优先于queue消费 */
+    private final Queue<Task> priorityQueue = new ConcurrentLinkedQueue<>();
+
+    /* 提供了key的任务 */
+    private final Map<Object, Task> queueing = new ConcurrentHashMap<>();
+
+    /* park中的消费线程 */
+    private final Queue<Thread> waiters = new ConcurrentLinkedQueue<>();
 
     private ThreadPoolExecutor executor;
 
@@ -37,6 +63,38 @@ public class TaskQueueScheduler {
 
     private CountDownLatch stopLatch;
 
+    /* shutdownNow时置为true, 消费线程不再执行队列中剩余的任务 */
+    private volatile boolean aborted = false;
+
+    /* 队列深度的高低水位, -1表示不检测 */
+    private volatile int highWatermark = -1;
+
+    private volatile int lowWatermark = -1;
+
+    /* 排队延迟的高低水位(纳秒), 0表示不检测 */
+    private volatile long highLatency = 0;
+
+    private volatile long lowLatency = 0;
+
+    /* 最近一次出队的任务的排队延迟(纳秒) */
+    private volatile long queueLatency;
+
+    private final AtomicBoolean saturated = new AtomicBoolean(false);
+
+    private volatile OverflowPolicy overflowPolicy = OverflowPolicy.REJECT;
+
+    private final LongAdder submitted = new LongAdder();
+
+    private final LongAdder executed = new LongAdder();
+
+    private final LongAdder rejected = new LongAdder();
+
+    private final LongAdder dropped = new LongAdder();
+
+    private final List<SaturationListener> saturationListeners = new CopyOnWriteArrayList<>();
+
+    private final List<Runnable> stopListeners = new CopyOnWriteArrayList<>();
+
     public TaskQueueScheduler() {
         this(-1, true);
     }
@@ -66,10 +124,23 @@ public class TaskQueueScheduler {
     }
 
     public TaskQueueScheduler(int poolSize, int queueSize, boolean start, String name) {
+        this(poolSize, queueSize, start, name, false);
+    }
+
+    /**
+     * virtualThreads为true且JDK支持虚拟线程时, 消费线程使用虚拟线程, 否则回退到平台线程
+     */
+    public TaskQueueScheduler(int poolSize, int queueSize, boolean start, String name, boolean virtualThreads) {
         this.poolSize = poolSize;
         this.queueSize = queueSize;
         this.name = name;
-        this.queue = queueSize > 0 ? new LinkedBlockingDeque(queueSize) : new LinkedBlockingDeque();
+        this.virtualThreads = virtualThreads && VirtualThreads.isAvailable();
+
+        if (virtualThreads && !this.virtualThreads) {
+            logger.warn("{} fallback to platform threads, virtual threads are not available on java {}", name, System.getProperty("java.version"));
+        }
+
+        this.queue = new MpmcArrayQueue<>(queueSize > 1 ? queueSize : DEFAULT_QUEUE_CAPACITY);
         this.executor = createExecutor(name);
 
         if (start) {
@@ -78,57 +149,268 @@ public class TaskQueueScheduler {
     }
 
     private ThreadPoolExecutor createExecutor(String name) {
+        if (virtualThreads) {
+            ThreadFactory factory = VirtualThreads.threadFactory(name + "-vthread-");
+
+            if (factory != null) {
+                return new ThreadPoolExecutor(poolSize, poolSize, 0, TimeUnit.MILLISECONDS, consumerQueue, factory);
+            }
+
+            virtualThreads = false;
+        }
+
         BasicThreadFactory factory = new BasicThreadFactory.Builder().namingPattern(name + "-thread-%d").priority(Thread.MAX_PRIORITY).build();
         return new ThreadPoolExecutor(poolSize, poolSize, 0, TimeUnit.MILLISECONDS, consumerQueue, factory);
     }
 
-    public synchronized void add(Task task) throws TaskRejectedException {
-        if (queueSize != -1 && queue.size() > queueSize) {
-            throw new TaskRejectedException("The queue is full");
-        }
+    /**
+     * 队列已满时按OverflowPolicy处理, REJECT时抛出TaskRejectedException
+     */
+    public void add(Task task) throws TaskRejectedException {
+        if (enqueueing(task)) {
+            task.enqueueTime = System.nanoTime();
+            submitted.increment();
+
+            if (!queue.offer(task) && !overflow(task)) {
+                dequeueing(task);
+                rejected.increment();
+
+                /* 按1,2,4,8...的间隔记录, 避免持续满载时刷屏 */
+                long count = rejected.sum();
+                if ((count & (count - 1)) == 0) {
+                    logger.warn("{} is full, {} tasks rejected [capacity = {}, policy = {}]", name, count, capacity(), overflowPolicy);
+                }
+
+                throw new TaskRejectedException("The queue is full");
+            }
 
-        if (task == STOP_TASK || enqueueing(task)) {
-            queue.add(task);
+            signal();
+            checkSaturated();
         } else {
             logger.info("Task processing in queue");
         }
     }
 
-    public synchronized void addFirst(Task task) throws TaskRejectedException {
-        if (queueSize != -1 && queue.size() > queueSize) {
-            throw new TaskRejectedException("The queue is full");
+    /**
+     * 队列已满时的处理, 返回false表示拒绝
+     */
+    private boolean overflow(Task task) {
+        OverflowPolicy policy = overflowPolicy;
+
+        if (policy == OverflowPolicy.CALLER_RUNS) {
+            if (dequeueing(task) && task.expire() != null) {
+                runTask(task);
+            }
+            return true;
+        } else if (policy == OverflowPolicy.DROP_OLDEST) {
+            Task oldest;
+
+            while ((oldest = queue.poll()) != null) {
+                if (dequeueing(oldest) && oldest.expire() != null) {
+                    dropped.increment();
+                    oldest.discard();
+                }
+
+                if (queue.offer(task)) {
+                    return true;
+                }
+            }
+
+            return queue.offer(task);
+        }
+
+        return false;
+    }
+
+    private void runTask(Task task) {
+        try {
+            task.execute();
+        } catch (Throwable e) {
+            logger.error(e.getMessage(), e);
+        } finally {
+            executed.increment();
         }
+    }
 
+    /**
+     * 优先执行的任务, 不受队列容量限制, 只用于少量的紧急任务
+     */
+    public void addFirst(Task task) throws TaskRejectedException {
         if (enqueueing(task)) {
-            queue.addFirst(task);
+            task.enqueueTime = System.nanoTime();
+            priorityQueue.add(task);
+            signal();
+            checkSaturated();
         } else {
             logger.info("Task processing in queue");
         }
     }
 
     private boolean enqueueing(Task task) {
-        return queueing.putIfAbsent(task.id(), task) == null;
+        Object key = task.key();
+        return key == null || queueing.putIfAbsent(key, task) == null;
     }
 
     private boolean dequeueing(Task task) {
-        return queueing.remove(task.id()) != null;
+        Object key = task.key();
+        return key == null || queueing.remove(key, task);
     }
 
-    private Task dequeueing(String id) {
-        return queueing.remove(id);
+    /**
+     * 任务不再按id()去重和查找, 只有key()非null的任务会被记录, 这里的id按key查找
+     *
+     * @deprecated 使用getQueueingTask(Object key), 需要按id查找的任务应重写key()返回id()
+     */
+    @Deprecated
+    public Task getQueueingTask(String id) {
+        return getQueueingTask((Object) id);
     }
 
-    public Task getQueueingTask(String id) {
-        Task task = dequeueing(id);
+    /**
+     * 取出key对应的还未执行的任务, 取出的任务不会再被执行
+     */
+    public Task getQueueingTask(Object key) {
+        Task task = queueing.remove(key);
         return task != null ? task.expire() : null;
     }
 
     public int size() {
-        return queue.size();
+        return queue.size() + priorityQueue.size();
+    }
+
+    public int capacity() {
+        return queue.capacity();
+    }
+
+    /* offer之后检查waiters, 与take中先登记waiters再检查队列相对应, 不会丢失唤醒 */
+    private void signal() {
+        if (!waiters.isEmpty()) {
+            Thread waiter = waiters.poll();
+
+            if (waiter != null) {
+                LockSupport.unpark(waiter);
+            }
+        }
+    }
+
+    private Task poll() {
+        Task task = priorityQueue.isEmpty() ? null : priorityQueue.poll();
+        return task != null ? task : queue.poll();
+    }
+
+    /**
+     * 依次自旋、让出CPU、park, 直到取到任务, 调度器停止且队列已空时返回null
+     */
+    private Task take() throws InterruptedException {
+        Task task;
+        int tries = 0;
+
+        while ((task = poll()) == null) {
+            if (!running.get()) {
+                /* 停止前投递的任务可能刚刚发布, 再取一次 */
+                return poll();
+            } else if (tries < SPIN_TRIES) {
+                tries++;
+            } else if (tries < SPIN_TRIES + YIELD_TRIES) {
+                tries++;
+                Thread.yield();
+            } else {
+                Thread current = Thread.currentThread();
+                waiters.add(current);
+
+                if ((task = poll()) != null) {
+                    waiters.remove(current);
+                    return task;
+                }
+
+                LockSupport.park(this);
+                waiters.remove(current);
+
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+            }
+        }
+
+        return task;
+    }
+
+    /**
+     * 设置饱和检测的水位: 队列深度达到highWatermark或排队延迟达到highLatencyMillis时进入饱和状态,
+     * 深度不超过lowWatermark且延迟不超过lowLatencyMillis时恢复, 状态变化时通知SaturationListener
+     * 深度水位为-1、延迟水位为0表示不检测该项
+     */
+    public void setWatermarks(int lowWatermark, int highWatermark, long lowLatencyMillis, long highLatencyMillis) {
+        this.lowWatermark = lowWatermark;
+        this.highWatermark = highWatermark;
+        this.lowLatency = TimeUnit.MILLISECONDS.toNanos(lowLatencyMillis);
+        this.highLatency = TimeUnit.MILLISECONDS.toNanos(highLatencyMillis);
+    }
+
+    public void addSaturationListener(SaturationListener listener) {
+        saturationListeners.add(listener);
+    }
+
+    public void removeSaturationListener(SaturationListener listener) {
+        saturationListeners.remove(listener);
+    }
+
+    /**
+     * 调度器停止(消费线程全部退出)后执行, 用于停止依附于调度器的资源
+     */
+    public void addStopListener(Runnable listener) {
+        stopListeners.add(listener);
+    }
+
+    public boolean isSaturated() {
+        return saturated.get();
+    }
+
+    /**
+     * 最近一次出队的任务的排队延迟(毫秒)
+     */
+    public long getQueueLatency() {
+        return TimeUnit.NANOSECONDS.toMillis(queueLatency);
+    }
+
+    private void checkSaturated() {
+        int high = highWatermark;
+        long latency = highLatency;
+
+        if (saturated.get() || (high < 0 && latency <= 0)) {
+            return;
+        }
+
+        if ((high >= 0 && queue.size() >= high) || (latency > 0 && queueLatency >= latency)) {
+            if (saturated.compareAndSet(false, true)) {
+                logger.warn("{} is saturated [size = {}, latency = {}ms]", name, queue.size(), getQueueLatency());
+                saturationListeners.forEach(SaturationListener::onSaturated);
+            }
+        }
+    }
+
+    private void checkDrained() {
+        if (!saturated.get()) {
+            return;
+        }
+
+        int low = lowWatermark;
+        long latency = lowLatency;
+
+        int size = queue.size();
+
+        /* 队列为空时不再有新的延迟样本, 直接恢复 */
+        if ((low < 0 || size <= low) && (latency <= 0 || queueLatency <= latency || size == 0)) {
+            if (saturated.compareAndSet(true, false)) {
+                logger.info("{} is drained [size = {}, latency = {}ms]", name, size, getQueueLatency());
+                saturationListeners.forEach(SaturationListener::onDrained);
+            }
+        }
     }
 
     public void start() {
         if (running.compareAndSet(false, true)) {
+            aborted = false;
             stopLatch = new CountDownLatch(poolSize);
 
             for (int i = 0; i < poolSize; i++) {
@@ -137,25 +419,70 @@ public class TaskQueueScheduler {
         }
     }
 
+    /**
+     * 停止调度器, 消费线程执行完队列中已有的任务后退出
+     */
     public void stop() {
         logger.info("try stop...");
         if (running.compareAndSet(true, false)) {
             logger.info("it's in running");
-            for (int i = 0; i < poolSize; i++) {
-                add(STOP_TASK);
-            }
 
             try {
                 logger.info("start await");
-                stopLatch.await();
+
+                /* 唤醒park中的消费线程, 它们取空队列后看到running=false退出; 重复唤醒以覆盖正在登记waiters的线程 */
+                do {
+                    for (Thread waiter : waiters) {
+                        LockSupport.unpark(waiter);
+                    }
+                } while (!stopLatch.await(10, TimeUnit.MILLISECONDS));
+
                 logger.info("end await");
             } catch (InterruptedException e) {
-                e.printStackTrace();
+                Thread.currentThread().interrupt();
+            }
+
+            for (Runnable listener : stopListeners) {
+                try {
+                    listener.run();
+                } catch (Throwable e) {
+                    logger.error(e.getMessage(), e);
+                }
             }
         }
         logger.info("finish stop...");
     }
 
+    /**
+     * 立即停止, 消费线程执行完当前任务后退出, 队列中剩余的任务被丢弃(调用Task.discard)
+     */
+    public void shutdownNow() {
+        aborted = true;
+        stop();
+        drain();
+        executor.shutdown();
+    }
+
+    /**
+     * 丢弃队列中剩余的任务
+     */
+    private void drain() {
+        Task task;
+        int count = 0;
+
+        while ((task = poll()) != null) {
+            if (dequeueing(task) && task.expire() != null) {
+                count++;
+                dropped.increment();
+                task.discard();
+            }
+        }
+
+        if (count > 0) {
+            logger.warn("{} stopped with {} tasks in queue, discarded", name, count);
+        }
+    }
+
     public void shutdown() {
         stop();
         executor.shutdown();
@@ -165,18 +492,71 @@ public class TaskQueueScheduler {
         return running.get();
     }
 
+    public String getName() {
+        return name;
+    }
+
+    public int getPoolSize() {
+        return poolSize;
+    }
+
+    public boolean isVirtualThreads() {
+        return virtualThreads;
+    }
+
+    public OverflowPolicy getOverflowPolicy() {
+        return overflowPolicy;
+    }
+
+    public void setOverflowPolicy(OverflowPolicy overflowPolicy) {
+        this.overflowPolicy = overflowPolicy != null ? overflowPolicy : OverflowPolicy.REJECT;
+    }
+
+    public long getSubmitted() {
+        return submitted.sum();
+    }
+
+    public long getExecuted() {
+        return executed.sum();
+    }
+
+    public long getRejected() {
+        return rejected.sum();
+    }
+
+    public long getDropped() {
+        return dropped.sum();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s {poolSize = %d, virtualThreads = %b, size = %d/%d, latency = %dms, submitted = %d, executed = %d, rejected = %d, dropped = %d, saturated = %b}",
+                name, poolSize, virtualThreads, size(), capacity(), getQueueLatency(), getSubmitted(), getExecuted(), getRejected(), getDropped(), isSaturated());
+    }
+
+    /**
+     * 队列已满时的处理策略
+     */
+    public enum OverflowPolicy {
+        /* 抛出TaskRejectedException */
+        REJECT,
+        /* 丢弃队列中最早的任务(调用Task.discard) */
+        DROP_OLDEST,
+        /* 在投递任务的线程上直接执行 */
+        CALLER_RUNS
+    }
+
     class TaskQueueConsumer implements Runnable {
         @Override
         public void run() {
             try {
                 Task task;
-                while (running.get() && (task = queue.take()) != null && task != STOP_TASK) {
+                while (!aborted && (task = take()) != null) {
+                    queueLatency = System.nanoTime() - task.enqueueTime;
+                    checkDrained();
+
                     if (dequeueing(task) && task.expire() != null) {
-                        try {
-                            task.execute();
-                        } catch (Throwable e) {
-                            logger.error(e.getMessage(), e);
-                        }
+                        runTask(task);
                     }
                 }
             } catch (Throwable e) {
@@ -188,9 +568,13 @@ public class TaskQueueScheduler {
         }
     }
 
-    static class StopTask extends Task {
-        @Override
-        public void execute() {
-        }
+    /**
+     * 队列饱和状态变化的通知, 在添加任务或消费任务的线程上执行, 不能有阻塞操作
+     */
+    public interface SaturationListener {
+
+        void onSaturated();
+
+        void onDrained();
     }
 }
@@ -0,0 +1,38 @@
+package com.xhtech.hermes.core.util;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 粗粒度时钟: 后台线程每毫秒刷新一次当前时间, 读取只是一次volatile读,
+ * 用于心跳等高频且对精度不敏感的时间戳
+ * 首次使用时启动, 刷新线程进程内共享且不会停止, 无论负载高低都会每毫秒唤醒一次(约每秒1000次),
+ * 是常驻的固定开销, 只在读取频率远高于此的场景使用
+ */
+public class CoarseClock {
+
+    public static final long PRECISION = 1;
+
+    private static volatile long now = System.currentTimeMillis();
+
+    static {
+        Thread thread = new Thread(() -> {
+            for (; ; ) {
+                now = System.currentTimeMillis();
+                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(PRECISION));
+            }
+        }, "coarse-clock");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private CoarseClock() {
+    }
+
+    /**
+     * 当前时间(毫秒), 误差在PRECISION左右
+     */
+    public static long currentTimeMillis() {
+        return now;
+    }
+}
@@ -0,0 +1,118 @@
+package com.xhtech.hermes.core.util;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.function.Function;
+import java.util.function.ToIntFunction;
+
+/**
+ * 带虚拟节点的一致性hash环, 创建后不可变
+ * 节点变化时重新创建并整体替换(copy-on-write), 查询无锁; 节点增减时只有约1/N的key会映射到其他节点
+ * 每个节点的虚拟节点数 = virtualNodes * weight, weight <= 0的节点不参与分配
+ */
+public final class ConsistentHashRing<T> {
+
+    public static final int DEFAULT_VIRTUAL_NODES = 160;
+
+    private static final HashFunction HASH_FUNCTION = Hashing.murmur3_32();
+
+    private static final ConsistentHashRing EMPTY = new ConsistentHashRing(new int[0], new Object[0]);
+
+    private final int[] hashes;
+
+    private final Object[] nodes;
+
+    private ConsistentHashRing(int[] hashes, Object[] nodes) {
+        this.hashes = hashes;
+        this.nodes = nodes;
+    }
+
+    public static <T> ConsistentHashRing<T> empty() {
+        return EMPTY;
+    }
+
+    public static <T> ConsistentHashRing<T> of(Collection<T> collection, ToIntFunction<T> weight, Function<T, String> name) {
+        return of(collection, weight, name, DEFAULT_VIRTUAL_NODES);
+    }
+
+    public static <T> ConsistentHashRing<T> of(Collection<T> collection, ToIntFunction<T> weight, Function<T, String> name, int virtualNodes) {
+        int total = 0;
+
+        for (T node : collection) {
+            total += Math.max(weight.applyAsInt(node), 0) * virtualNodes;
+        }
+
+        if (total == 0) {
+            return empty();
+        }
+
+        long[] points = new long[total];
+        Object[] owners = new Object[collection.size()];
+        int i = 0, n = 0;
+
+        for (T node : collection) {
+            int replicas = Math.max(weight.applyAsInt(node), 0) * virtualNodes;
+
+            if (replicas == 0) {
+                continue;
+            }
+
+            String prefix = name.apply(node) + "#";
+            owners[n] = node;
+
+            for (int r = 0; r < replicas; r++) {
+                // 高32位为hash(有符号排序), 低32位为节点下标
+                points[i++] = (long) hash(prefix + r) << 32 | n;
+            }
+
+            n++;
+        }
+
+        Arrays.sort(points);
+
+        int[] hashes = new int[total];
+        Object[] nodes = new Object[total];
+
+        for (int j = 0; j < total; j++) {
+            hashes[j] = (int) (points[j] >> 32);
+            nodes[j] = owners[(int) points[j]];
+        }
+
+        return new ConsistentHashRing<>(hashes, nodes);
+    }
+
+    /**
+     * 顺时针查找第一个hash值不小于key的hash的虚拟节点
+     */
+    @SuppressWarnings("unchecked")
+    public T get(String key) {
+        int length = hashes.length;
+
+        if (length == 0) {
+            return null;
+        }
+
+        int idx = Arrays.binarySearch(hashes, hash(key));
+
+        if (idx < 0) {
+            idx = -idx - 1;
+        }
+
+        return (T) nodes[idx < length ? idx : 0];
+    }
+
+    public boolean isEmpty() {
+        return hashes.length == 0;
+    }
+
+    public int size() {
+        return hashes.length;
+    }
+
+    private static int hash(String key) {
+        return HASH_FUNCTION.hashUnencodedChars(key).asInt();
+    }
+}
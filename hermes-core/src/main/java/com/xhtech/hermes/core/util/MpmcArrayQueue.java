@@ -0,0 +1,121 @@
+package com.xhtech.hermes.core.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * 有界的无锁多生产者多消费者队列(环形数组)
+ * 每个槽位带一个序号: 序号等于生产位置时可写, 等于生产位置+1时可读, 读取后推进一圈, 生产者和消费者只在head/tail上CAS
+ * 容量向上取整为2的幂
+ */
+public class MpmcArrayQueue<E> {
+
+    private final int capacity;
+
+    private final int mask;
+
+    private final AtomicLongArray sequences;
+
+    private final AtomicReferenceArray<E> buffer;
+
+    private final PaddedAtomicLong head = new PaddedAtomicLong();
+
+    private final PaddedAtomicLong tail = new PaddedAtomicLong();
+
+    public MpmcArrayQueue(int capacity) {
+        if (capacity < 2) {
+            throw new IllegalArgumentException("capacity must be greater than 1");
+        }
+
+        this.capacity = capacity > (1 << 30) ? 1 << 30 : Integer.highestOneBit(capacity - 1) << 1;
+        this.mask = this.capacity - 1;
+        this.sequences = new AtomicLongArray(this.capacity);
+        this.buffer = new AtomicReferenceArray<>(this.capacity);
+
+        for (int i = 0; i < this.capacity; i++) {
+            sequences.set(i, i);
+        }
+    }
+
+    /**
+     * 队列已满时返回false
+     */
+    public boolean offer(E e) {
+        if (e == null) {
+            throw new NullPointerException();
+        }
+
+        long pos;
+        int idx;
+
+        for (; ; ) {
+            pos = tail.get();
+            idx = (int) (pos & mask);
+            long dif = sequences.get(idx) - pos;
+
+            if (dif == 0) {
+                if (tail.compareAndSet(pos, pos + 1)) {
+                    break;
+                }
+            } else if (dif < 0) {
+                return false;
+            }
+        }
+
+        buffer.lazySet(idx, e);
+        sequences.set(idx, pos + 1);
+        return true;
+    }
+
+    /**
+     * 队列为空时返回null
+     */
+    public E poll() {
+        long pos;
+        int idx;
+
+        for (; ; ) {
+            pos = head.get();
+            idx = (int) (pos & mask);
+            long dif = sequences.get(idx) - (pos + 1);
+
+            if (dif == 0) {
+                if (head.compareAndSet(pos, pos + 1)) {
+                    break;
+                }
+            } else if (dif < 0) {
+                return null;
+            }
+        }
+
+        E e = buffer.get(idx);
+        buffer.lazySet(idx, null);
+        sequences.set(idx, pos + mask + 1);
+        return e;
+    }
+
+    /**
+     * 并发修改时为近似值
+     */
+    public int size() {
+        long h = head.get();
+        long size = tail.get() - h;
+        return size < 0 ? 0 : (int) Math.min(size, capacity);
+    }
+
+    public boolean isEmpty() {
+        return tail.get() == head.get();
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+
+    /* head和tail分别被消费者和生产者频繁CAS, 填充避免二者落在同一缓存行 */
+    @SuppressWarnings("unused")
+    static final class PaddedAtomicLong extends AtomicLong {
+
+        long p1, p2, p3, p4, p5, p6, p7;
+    }
+}
@@ -0,0 +1,65 @@
+package com.xhtech.hermes.core.util;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * 通过反射使用JDK 21的虚拟线程, 编译目标仍为Java 8
+ * 低版本JDK(或JDK 19/20未开启preview)上isAvailable()返回false, 调用方回退到平台线程
+ */
+public class VirtualThreads {
+
+    private static final Logger logger = LoggerFactory.getLogger(VirtualThreads.class);
+
+    private static final Method OF_VIRTUAL;
+
+    private static final Method NAME;
+
+    private static final Method FACTORY;
+
+    static {
+        Method ofVirtual = null, name = null, factory = null;
+
+        try {
+            Class<?> builder = Class.forName("java.lang.Thread$Builder");
+            ofVirtual = Thread.class.getMethod("ofVirtual");
+            name = builder.getMethod("name", String.class, long.class);
+            factory = builder.getMethod("factory");
+
+            /* 未开启preview时ofVirtual会抛出UnsupportedOperationException */
+            ofVirtual.invoke(null);
+        } catch (Throwable e) {
+            ofVirtual = null;
+            logger.debug("Virtual threads are not available on java {}", System.getProperty("java.version"));
+        }
+
+        OF_VIRTUAL = ofVirtual;
+        NAME = name;
+        FACTORY = factory;
+    }
+
+    public static boolean isAvailable() {
+        return OF_VIRTUAL != null;
+    }
+
+    /**
+     * 以prefix加序号命名的虚拟线程工厂, 不可用时返回null
+     */
+    public static ThreadFactory threadFactory(String prefix) {
+        if (!isAvailable()) {
+            return null;
+        }
+
+        try {
+            Object builder = OF_VIRTUAL.invoke(null);
+            builder = NAME.invoke(builder, prefix, 0L);
+            return (ThreadFactory) FACTORY.invoke(builder);
+        } catch (Exception e) {
+            logger.warn("Create virtual thread factory failed", e);
+            return null;
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package com.xhtech.hermes.core.netty;
+
+import com.xhtech.hermes.core.netty.NettyContext.Role;
+import com.xhtech.hermes.core.netty.codec.ProtoDecoder;
+import com.xhtech.hermes.core.netty.codec.ProtoEncoder;
+import io.netty.bootstrap.Bootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.EventLoopGroup;
+import io.netty.handler.codec.ByteToMessageDecoder;
+import io.netty.handler.timeout.IdleStateHandler;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 本机回环地址上的建连吞吐基准: 依次以1..N个acceptor启动NettyServer, 并发发起connections个连接,
+ * 统计服务端完成accept的速率. 多acceptor依赖epoll, 其他平台只会测到单acceptor
+ * 运行: java NettyServerAcceptBenchmark [maxAcceptors] [connections] [port], 连接数较大时需调高ulimit -n
+ */
+public class NettyServerAcceptBenchmark {
+
+    private static final int MAX_PENDING_CONNECTS = 512;
+
+    public static void main(String[] args) throws Exception {
+        int maxAcceptors = args.length > 0 ? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors();
+        int connections = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+        int port = args.length > 2 ? Integer.parseInt(args[2]) : 19090;
+
+        EventLoopGroup clientGroup = NettyContext.get().acquire(Role.CLIENT_IO);
+
+        try {
+            for (int n = 1; n <= maxAcceptors; n++) {
+                run(clientGroup, n, connections, port);
+            }
+        } finally {
+            NettyContext.get().release(Role.CLIENT_IO);
+        }
+    }
+
+    private static void run(EventLoopGroup clientGroup, int acceptors, int connections, int port) throws InterruptedException {
+        AcceptServer server = new AcceptServer(connections);
+        server.setAcceptors(acceptors);
+        server.start(port);
+
+        while (server.getServerChannels().size() < server.getAcceptors()) {
+            Thread.sleep(10);
+        }
+
+        Bootstrap b = new Bootstrap();
+        b.group(clientGroup).channel(NettyContext.get().getChannelClass()).handler(new ChannelInboundHandlerAdapter());
+
+        Queue<Channel> clients = new ConcurrentLinkedQueue<>();
+        Semaphore pending = new Semaphore(MAX_PENDING_CONNECTS);
+        long start = System.nanoTime();
+
+        for (int i = 0; i < connections; i++) {
+            pending.acquire();
+            b.connect("127.0.0.1", port).addListener((ChannelFutureListener) f -> {
+                pending.release();
+
+                if (f.isSuccess()) {
+                    clients.add(f.channel());
+                }
+            });
+        }
+
+        boolean completed = server.accepted.await(60, TimeUnit.SECONDS);
+        long elapsed = System.nanoTime() - start;
+        long accepted = connections - server.accepted.getCount();
+
+        System.out.printf("acceptors = %d, accepted = %d/%d, elapsed = %.1fms, throughput = %.0f conn/s%s%n",
+                server.getAcceptors(), accepted, connections, elapsed / 1e6, accepted * 1e9 / elapsed, completed ? "" : " (timeout)");
+
+        for (Channel channel : clients) {
+            channel.close().syncUninterruptibly();
+        }
+
+        server.stop();
+
+        while (server.isRunning()) {
+            Thread.sleep(10);
+        }
+    }
+
+    static class AcceptServer extends NettyServer {
+
+        final CountDownLatch accepted;
+
+        AcceptServer(int connections) {
+            this.accepted = new CountDownLatch(connections);
+        }
+
+        @Override
+        protected void initChannel(Channel ch) {
+            accepted.countDown();
+        }
+
+        @Override
+        public IdleStateHandler getIdleStateHandler() {
+            return null;
+        }
+
+        @Override
+        public ByteToMessageDecoder getLengthFieldBasedFrameDecoder() {
+            return null;
+        }
+
+        @Override
+        public ProtoEncoder getEncoder() {
+            return null;
+        }
+
+        @Override
+        public ProtoDecoder getDecoder() {
+            return null;
+        }
+    }
+}
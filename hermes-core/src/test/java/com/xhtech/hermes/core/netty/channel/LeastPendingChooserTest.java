@@ -0,0 +1,47 @@
+package com.xhtech.hermes.core.netty.channel;
+
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class LeastPendingChooserTest {
+
+    private ChannelHandlerContext context() {
+        return new EmbeddedChannel(new ChannelInboundHandlerAdapter()).pipeline().firstContext();
+    }
+
+    @Test
+    public void roundRobinWhenIdle() {
+        LeastPendingChooser chooser = new LeastPendingChooser();
+        ChannelHandlerContext[] contexts = {context(), context(), context()};
+        Set<ChannelHandlerContext> chosen = new HashSet<>();
+
+        for (int i = 0; i < contexts.length; i++) {
+            chosen.add(chooser.choose(contexts));
+        }
+
+        assertEquals(contexts.length, chosen.size());
+        assertNull(chooser.choose(new ChannelHandlerContext[0]));
+    }
+
+    @Test
+    public void leastPending() {
+        LeastPendingChooser chooser = new LeastPendingChooser();
+        ChannelHandlerContext busy = context();
+        ChannelHandlerContext idle = context();
+
+        /* 只写不flush, 消息留在出站缓冲中 */
+        busy.channel().write(Unpooled.buffer().writeZero(1024));
+
+        for (int i = 0; i < 10; i++) {
+            assertSame(idle, chooser.choose(new ChannelHandlerContext[]{busy, idle}));
+        }
+    }
+}
@@ -0,0 +1,43 @@
+package com.xhtech.hermes.core.netty.selector;
+
+import com.xhtech.hermes.core.netty.ChannelPoolClient.RemoteEndpoint;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class EwmaLatencySelectorTest {
+
+    private void sample(RemoteEndpoint remoteEndpoint, long latencyMillis) {
+        long start = remoteEndpoint.begin() - TimeUnit.MILLISECONDS.toNanos(latencyMillis);
+        remoteEndpoint.end(start, true, 0);
+    }
+
+    @Test
+    public void unsampledCountsOutstanding() {
+        EwmaLatencySelector selector = new EwmaLatencySelector();
+        RemoteEndpoint sampled = new RemoteEndpoint("127.0.0.1", 9001);
+        RemoteEndpoint fresh = new RemoteEndpoint("127.0.0.1", 9002);
+        sample(sampled, 10);
+
+        /* 没有样本的节点按平均延迟计算, 空闲时与已采样的节点cost相同 */
+        RemoteEndpoint[] endpoints = {sampled, fresh};
+        RemoteEndpoint first = selector.select(endpoints);
+        first.begin();
+
+        /* 已有等待中请求的节点不再被选中 */
+        assertNotSame(first, selector.select(endpoints));
+
+        fresh.begin();
+        fresh.begin();
+        assertSame(sampled, selector.select(new RemoteEndpoint[]{fresh, sampled}));
+    }
+
+    @Test
+    public void failurePenalty() {
+        RemoteEndpoint remoteEndpoint = new RemoteEndpoint("127.0.0.1", 9001);
+        remoteEndpoint.end(remoteEndpoint.begin(), false, 1000);
+        assertTrue(remoteEndpoint.getLatency() >= TimeUnit.SECONDS.toNanos(1));
+    }
+}
@@ -0,0 +1,46 @@
+package com.xhtech.hermes.core.netty.session;
+
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ClientSessionManagerTest {
+
+    private ChannelHandlerContext context() {
+        return new EmbeddedChannel(new ChannelInboundHandlerAdapter()).pipeline().firstContext();
+    }
+
+    @Test
+    public void counters() {
+        ClientSessionManager manager = new ClientSessionManager();
+        ChannelHandlerContext ctx1 = context();
+        ChannelHandlerContext ctx2 = context();
+
+        ClientSession a = manager.createSession(ctx1, "a", "app1", null);
+        manager.createSession(ctx2, "a", "app1", null);
+        manager.createSession(context(), "b", null, null);
+
+        assertEquals(2, manager.getSessionCount());
+        assertEquals(3, manager.getActiveCount());
+        assertEquals(1, manager.getSessionCount("app1"));
+        assertEquals(2, manager.getActiveCount("app1"));
+        assertEquals(1, manager.getActiveCount(null));
+
+        a.close(ctx1);
+        assertEquals(2, manager.getActiveCount());
+        assertEquals(1, manager.getActiveCount("app1"));
+
+        a.close(ctx2);
+        assertEquals(1, manager.getSessionCount());
+        assertEquals(1, manager.getActiveCount());
+        assertEquals(0, manager.getSessionCount("app1"));
+        assertEquals(0, manager.getActiveCount("app1"));
+
+        manager.clean();
+        assertEquals(0, manager.getSessionCount());
+        assertEquals(0, manager.getActiveCount());
+    }
+}
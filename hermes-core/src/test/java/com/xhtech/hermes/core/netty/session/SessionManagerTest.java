@@ -0,0 +1,158 @@
+package com.xhtech.hermes.core.netty.session;
+
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class SessionManagerTest {
+
+    @Test
+    public void expire() {
+        SessionManager manager = new SessionManager();
+        long now = System.currentTimeMillis();
+        manager.create("a", 2);
+        manager.create("b", 0);
+
+        manager.processExpires(now + 1000);
+        assertNotNull(manager.get("a"));
+
+        manager.processExpires(now + 3100);
+        assertNull(manager.get("a"));
+        assertNotNull(manager.get("b"));
+    }
+
+    @Test
+    public void active() throws InterruptedException {
+        SessionManager manager = new SessionManager(10);
+        long now = System.currentTimeMillis();
+        Session session = manager.create("a", 1);
+
+        Thread.sleep(300);
+        session.active();
+
+        manager.processExpires(now + 1100);
+        assertNotNull(manager.get("a"));
+
+        manager.processExpires(now + 1500);
+        assertNull(manager.get("a"));
+    }
+
+    @Test
+    public void cascade() {
+        SessionManager manager = new SessionManager();
+        long now = System.currentTimeMillis();
+        manager.create("a", 5000);
+        manager.create("b", 70);
+
+        manager.processExpires(now + 69_000);
+        assertEquals(2, manager.size());
+
+        manager.processExpires(now + 71_000);
+        assertEquals(1, manager.size());
+
+        manager.processExpires(now + 4_999_000);
+        assertNotNull(manager.get("a"));
+
+        manager.processExpires(now + 5_001_000);
+        assertEquals(0, manager.size());
+    }
+
+    @Test
+    public void expiredBeforeDue() {
+        SessionManager manager = new SessionManager();
+        long now = System.currentTimeMillis();
+        Session session = manager.create("a", 2);
+        session.expire();
+        assertEquals(0, manager.size());
+
+        manager.create("a", 10);
+        manager.processExpires(now + 3000);
+        assertNotNull(manager.get("a"));
+    }
+
+    @Test
+    public void activeEvents() throws InterruptedException {
+        SessionManager manager = new SessionManager();
+        Session session = manager.create("a", 10);
+        AtomicInteger events = new AtomicInteger();
+        AtomicReference<Object> data = new AtomicReference<>();
+
+        session.addListener(new SessionListener() {
+            @Override
+            public void created(SessionEvent event) {
+            }
+
+            @Override
+            public void active(SessionEvent event) {
+                events.incrementAndGet();
+                data.set(event.data);
+            }
+
+            @Override
+            public void destroy(SessionEvent event) {
+            }
+        });
+
+        for (int i = 0; i < 1000; i++) {
+            session.active(i);
+        }
+
+        Thread.sleep(SessionActiveDispatcher.BATCH_INTERVAL * 5);
+        assertTrue(events.get() >= 1 && events.get() < 1000);
+        assertEquals(999, data.get());
+    }
+
+    @Test
+    public void activeUnaware() {
+        SessionManager manager = new SessionManager();
+        Session session = manager.create("a", 10);
+
+        session.addListener(new SessionListener() {
+            @Override
+            public void created(SessionEvent event) {
+            }
+
+            @Override
+            public void active(SessionEvent event) {
+            }
+
+            @Override
+            public void destroy(SessionEvent event) {
+            }
+
+            @Override
+            public boolean activeAware() {
+                return false;
+            }
+        });
+
+        session.active(1);
+        assertEquals(0, session.activePending);
+        assertNull(session.activeData);
+    }
+
+    @Test
+    public void shards() {
+        SessionManager manager = new SessionManager(8, 1000);
+
+        for (int i = 0; i < 1000; i++) {
+            manager.create("s" + i, 10);
+        }
+
+        assertEquals(1000, manager.size());
+        assertEquals(1000, manager.getSessions().size());
+        assertEquals(1000, manager.getSessions().stream().count());
+        assertEquals(1000, manager.sum(session -> 1));
+
+        AtomicInteger visited = new AtomicInteger();
+        manager.forEach(session -> visited.incrementAndGet());
+        assertEquals(1000, visited.get());
+
+        manager.remove("s1");
+        assertNull(manager.get("s1"));
+        assertNotNull(manager.get("s2"));
+    }
+}
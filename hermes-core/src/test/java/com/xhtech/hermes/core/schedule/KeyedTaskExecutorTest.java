@@ -0,0 +1,183 @@
+package com.xhtech.hermes.core.schedule;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class KeyedTaskExecutorTest {
+
+    @Test
+    public void sameKeyInOrder() throws InterruptedException {
+        KeyedTaskExecutor executor = new KeyedTaskExecutor(4, getClass().getSimpleName());
+        Map<Integer, List<Integer>> executed = new ConcurrentHashMap<>();
+        int count = 10000;
+        CountDownLatch latch = new CountDownLatch(count);
+
+        for (int i = 0; i < count; i++) {
+            final int key = i % 10;
+            final int value = i;
+
+            executor.execute(key, new Task() {
+                @Override
+                public void execute() {
+                    executed.computeIfAbsent(key, k -> Collections.synchronizedList(new ArrayList<>())).add(value);
+                    latch.countDown();
+                }
+            });
+        }
+
+        assertTrue(latch.await(10, TimeUnit.SECONDS));
+        assertEquals(10, executed.size());
+
+        for (List<Integer> values : executed.values()) {
+            for (int i = 1; i < values.size(); i++) {
+                assertTrue(values.get(i - 1) < values.get(i));
+            }
+        }
+
+        executor.shutdown();
+    }
+
+    @Test
+    public void saturation() throws InterruptedException {
+        KeyedTaskExecutor executor = new KeyedTaskExecutor(1, 8, getClass().getSimpleName());
+        executor.setWatermarks(2, 6);
+        CountDownLatch blocked = new CountDownLatch(1);
+        CountDownLatch drained = new CountDownLatch(1);
+
+        executor.addSaturationListener(new TaskQueueScheduler.SaturationListener() {
+            @Override
+            public void onSaturated() {
+            }
+
+            @Override
+            public void onDrained() {
+                drained.countDown();
+            }
+        });
+
+        Task block = new Task() {
+            @Override
+            public void execute() {
+                try {
+                    blocked.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+
+        executor.execute("k", block);
+
+        for (int i = 0; i < 8 && !executor.isSaturated(); i++) {
+            executor.execute("k", new Task() {
+                @Override
+                public void execute() {
+                }
+            });
+        }
+
+        assertTrue(executor.isSaturated());
+        assertTrue(executor.isSaturated("k"));
+
+        blocked.countDown();
+        assertTrue(drained.await(5, TimeUnit.SECONDS));
+        assertFalse(executor.isSaturated());
+
+        executor.shutdown();
+    }
+
+    @Test
+    public void laneDrainedAlone() throws InterruptedException {
+        KeyedTaskExecutor executor = new KeyedTaskExecutor(2, 8, getClass().getSimpleName());
+        executor.setWatermarks(2, 6);
+        int busy = executor.lane("a");
+        Object other = null;
+
+        for (int i = 0; other == null; i++) {
+            if (executor.lane("b" + i) != busy) {
+                other = "b" + i;
+            }
+        }
+
+        CountDownLatch blockBusy = new CountDownLatch(1);
+        CountDownLatch blockOther = new CountDownLatch(1);
+        CountDownLatch busyDrained = new CountDownLatch(1);
+
+        executor.addSaturationListener(busy, new TaskQueueScheduler.SaturationListener() {
+            @Override
+            public void onSaturated() {
+            }
+
+            @Override
+            public void onDrained() {
+                busyDrained.countDown();
+            }
+        });
+
+        executor.execute("a", block(blockBusy));
+        executor.execute(other, block(blockOther));
+
+        for (int i = 0; i < 6; i++) {
+            executor.execute("a", noop());
+            executor.execute(other, noop());
+        }
+
+        assertTrue(executor.isLaneSaturated(busy));
+
+        /* 另一个lane仍然饱和时, 已恢复的lane单独通知 */
+        blockBusy.countDown();
+        assertTrue(busyDrained.await(5, TimeUnit.SECONDS));
+        assertTrue(executor.isSaturated());
+
+        blockOther.countDown();
+        executor.shutdown();
+    }
+
+    @Test
+    public void shutdownRunsQueued() throws InterruptedException {
+        KeyedTaskExecutor executor = new KeyedTaskExecutor(2, getClass().getSimpleName());
+        CountDownLatch latch = new CountDownLatch(100);
+
+        for (int i = 0; i < 100; i++) {
+            executor.execute(i, new Task() {
+                @Override
+                public void execute() {
+                    latch.countDown();
+                }
+            });
+        }
+
+        executor.shutdown();
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+    }
+
+    private Task block(CountDownLatch latch) {
+        return new Task() {
+            @Override
+            public void execute() {
+                try {
+                    latch.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+    }
+
+    private Task noop() {
+        return new Task() {
+            @Override
+            public void execute() {
+            }
+        };
+    }
+}
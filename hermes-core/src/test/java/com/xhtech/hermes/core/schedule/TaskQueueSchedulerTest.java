@@ -4,6 +4,10 @@ import lombok.experimental.var;
 import lombok.extern.slf4j.Slf4j;
 import org.junit.Test;
 
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
 import static org.junit.Assert.*;
 
 /**
@@ -48,6 +52,97 @@ public class TaskQueueSchedulerTest {
 
     }
 
+    @Test
+    public void saturation() throws InterruptedException {
+        TaskQueueScheduler scheduler = new TaskQueueScheduler(1, getClass().getSimpleName());
+        scheduler.setWatermarks(1, 4, 0, 0);
+
+        CountDownLatch drained = new CountDownLatch(1);
+        scheduler.addSaturationListener(new TaskQueueScheduler.SaturationListener() {
+            @Override
+            public void onSaturated() {
+            }
+
+            @Override
+            public void onDrained() {
+                drained.countDown();
+            }
+        });
+
+        CountDownLatch blocking = new CountDownLatch(1);
+        scheduler.add(new Task() {
+            @Override
+            public void execute() {
+                try {
+                    blocking.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+
+        for (int i = 0; i < 4; i++) {
+            scheduler.add(new Task() {
+                @Override
+                public void execute() {
+                }
+            });
+        }
+
+        assertTrue(scheduler.isSaturated());
+
+        blocking.countDown();
+        assertTrue(drained.await(5, TimeUnit.SECONDS));
+        assertFalse(scheduler.isSaturated());
+
+        scheduler.stop();
+    }
+
+    @Test
+    public void stopRunsQueuedTasks() {
+        TaskQueueScheduler scheduler = new TaskQueueScheduler(2, 64, true, getClass().getSimpleName());
+        AtomicInteger executed = new AtomicInteger();
+
+        for (int i = 0; i < 32; i++) {
+            scheduler.add(new Task() {
+                @Override
+                public void execute() {
+                    doSth(1);
+                    executed.incrementAndGet();
+                }
+            });
+        }
+
+        scheduler.stop();
+        assertEquals(32, executed.get());
+    }
+
+    @Test
+    public void shutdownNowDiscards() {
+        TaskQueueScheduler scheduler = new TaskQueueScheduler(1, 64, true, getClass().getSimpleName());
+        AtomicInteger executed = new AtomicInteger();
+        AtomicInteger discarded = new AtomicInteger();
+
+        for (int i = 0; i < 32; i++) {
+            scheduler.add(new Task() {
+                @Override
+                public void execute() {
+                    doSth(5);
+                    executed.incrementAndGet();
+                }
+
+                @Override
+                public void discard() {
+                    discarded.incrementAndGet();
+                }
+            });
+        }
+
+        scheduler.shutdownNow();
+        assertTrue(discarded.get() > 0);
+        assertEquals(32, executed.get() + discarded.get());
+    }
+
     private void doSth(long ms){
         try {
 
@@ -0,0 +1,85 @@
+package com.xhtech.hermes.core.util;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class ConsistentHashRingTest {
+
+    private static final int KEYS = 20000;
+
+    private ConsistentHashRing<String> ring(List<String> nodes, Map<String, Integer> weights) {
+        return ConsistentHashRing.of(nodes, node -> weights.getOrDefault(node, 1), node -> node);
+    }
+
+    private List<String> nodes(int size) {
+        List<String> nodes = new ArrayList<>();
+        for (int i = 0; i < size; i++) {
+            nodes.add("192.168.0." + i + ":9000");
+        }
+        return nodes;
+    }
+
+    @Test
+    public void empty() {
+        Assert.assertNull(ConsistentHashRing.<String>empty().get("client"));
+        Assert.assertNull(ring(new ArrayList<>(), new HashMap<>()).get("client"));
+    }
+
+    @Test
+    public void addNodeOnlyRemapsToNewNode() {
+        List<String> nodes = nodes(10);
+        ConsistentHashRing<String> before = ring(nodes, new HashMap<>());
+
+        nodes.add("192.168.0.100:9000");
+        ConsistentHashRing<String> after = ring(nodes, new HashMap<>());
+
+        int moved = 0;
+        for (int i = 0; i < KEYS; i++) {
+            String key = "client-" + i;
+            String from = before.get(key);
+            String to = after.get(key);
+
+            if (!from.equals(to)) {
+                moved++;
+                Assert.assertEquals("192.168.0.100:9000", to);
+            }
+        }
+
+        Assert.assertTrue("moved " + moved, moved > 0 && moved < KEYS * 2 / 11);
+    }
+
+    @Test
+    public void weight() {
+        List<String> nodes = nodes(2);
+        Map<String, Integer> weights = new HashMap<>();
+        weights.put(nodes.get(0), 3);
+        weights.put(nodes.get(1), 1);
+        ConsistentHashRing<String> ring = ring(nodes, weights);
+
+        int heavy = 0;
+        for (int i = 0; i < KEYS; i++) {
+            if (nodes.get(0).equals(ring.get("client-" + i))) {
+                heavy++;
+            }
+        }
+
+        Assert.assertTrue("heavy " + heavy, heavy > KEYS * 2 / 3 && heavy < KEYS * 5 / 6);
+    }
+
+    @Test
+    public void zeroWeightExcluded() {
+        List<String> nodes = nodes(2);
+        Map<String, Integer> weights = new HashMap<>();
+        weights.put(nodes.get(0), 0);
+        ConsistentHashRing<String> ring = ring(nodes, weights);
+
+        for (int i = 0; i < 1000; i++) {
+            Assert.assertEquals(nodes.get(1), ring.get("client-" + i));
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package com.xhtech.hermes.core.util;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+public class MpmcArrayQueueTest {
+
+    @Test
+    public void capacity() {
+        assertEquals(2, new MpmcArrayQueue<Integer>(2).capacity());
+        assertEquals(8, new MpmcArrayQueue<Integer>(5).capacity());
+        assertEquals(1024, new MpmcArrayQueue<Integer>(1024).capacity());
+    }
+
+    @Test
+    public void fifoAndFull() {
+        MpmcArrayQueue<Integer> queue = new MpmcArrayQueue<>(4);
+
+        for (int i = 0; i < 4; i++) {
+            assertTrue(queue.offer(i));
+        }
+
+        assertFalse(queue.offer(4));
+        assertEquals(4, queue.size());
+
+        for (int i = 0; i < 4; i++) {
+            assertEquals(Integer.valueOf(i), queue.poll());
+        }
+
+        assertNull(queue.poll());
+        assertTrue(queue.isEmpty());
+    }
+
+    @Test
+    public void concurrent() throws InterruptedException {
+        MpmcArrayQueue<Integer> queue = new MpmcArrayQueue<>(1024);
+        int producers = 4, consumers = 4, count = 100000;
+        AtomicLong sum = new AtomicLong();
+        AtomicInteger consumed = new AtomicInteger();
+        List<Thread> threads = new ArrayList<>();
+
+        for (int p = 0; p < producers; p++) {
+            threads.add(new Thread(() -> {
+                for (int i = 1; i <= count; i++) {
+                    while (!queue.offer(i)) {
+                        Thread.yield();
+                    }
+                }
+            }));
+        }
+
+        for (int c = 0; c < consumers; c++) {
+            threads.add(new Thread(() -> {
+                while (consumed.get() < producers * count) {
+                    Integer i = queue.poll();
+
+                    if (i != null) {
+                        sum.addAndGet(i);
+                        consumed.incrementAndGet();
+                    }
+                }
+            }));
+        }
+
+        threads.forEach(Thread::start);
+
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals((long) producers * count * (count + 1) / 2, sum.get());
+        assertTrue(queue.isEmpty());
+    }
+}
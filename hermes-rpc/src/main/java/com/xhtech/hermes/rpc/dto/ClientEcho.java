@@ -5,6 +5,8 @@ import com.xhtech.hermes.core.netty.proto.StringEx;
 import com.xhtech.hermes.rpc.net.proto.CMD;
 import com.xhtech.hermes.rpc.net.proto.RPCProto;
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
 
 import static org.apache.commons.lang.StringUtils.isNotEmpty;
 
@@ -15,6 +17,9 @@ public class ClientEcho extends RPCProto {
 
     private StringEx message;
 
+    /* 以retained slice方式解码时的message, 引用入站帧 */
+    private ByteBuf messageSlice;
+
     @Override
     public byte getCmd() {
         return CMD.CLIENT_ECHO_CMD;
@@ -31,18 +36,37 @@ public class ClientEcho extends RPCProto {
     @Override
     public void writeBody(ByteBuf buf) {
         writeString(buf, clientId);
-        writeString(buf, message);
+
+        if (messageSlice != null) {
+            buf.writeByte(messageSlice.readableBytes() & 0xFF);
+            buf.writeBytes(messageSlice, messageSlice.readerIndex(), messageSlice.readableBytes());
+        } else {
+            writeString(buf, message);
+        }
     }
 
     @Override
     public void readBody(ByteBuf buf) {
         clientId = readString(buf);
-        message = readString(buf);
+
+        if (isRetainedSlice()) {
+            messageSlice = readSlice(buf, buf.readByte() & 0xFF);
+        } else {
+            message = readString(buf);
+        }
     }
 
     @Override
     public int bodyLength() {
-        return clientId.length() + message.length();
+        return clientId.length() + (messageSlice != null ? messageSlice.readableBytes() + 1 : message.length());
+    }
+
+    @Override
+    protected void deallocate() {
+        if (messageSlice != null) {
+            messageSlice.release();
+            messageSlice = null;
+        }
     }
 
     public String format() {
@@ -69,10 +93,21 @@ public class ClientEcho extends RPCProto {
     }
 
     public String getMessage() {
+        if (message == null && messageSlice != null) {
+            message = messageSlice.isReadable() ? new StringEx(ByteBufUtil.getBytes(messageSlice)) : StringEx.EMPTY;
+        }
         return message.getValue();
     }
 
     public void setMessage(String message) {
+        deallocate();
         this.message = new StringEx(message);
     }
+
+    /**
+     * message的ByteBuf视图, 以retained slice方式解码时为入站帧的retained duplicate, 由调用方负责release
+     */
+    public ByteBuf getMessageBuf() {
+        return messageSlice != null ? messageSlice.retainedDuplicate() : Unpooled.wrappedBuffer(message.getBytes());
+    }
 }
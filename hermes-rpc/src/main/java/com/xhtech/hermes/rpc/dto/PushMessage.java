@@ -5,6 +5,9 @@ import com.xhtech.hermes.core.netty.proto.StringEx;
 import com.xhtech.hermes.rpc.net.proto.CMD;
 import com.xhtech.hermes.rpc.net.proto.RPCProto;
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
+import io.netty.util.IllegalReferenceCountException;
 import org.apache.commons.lang3.StringUtils;
 import org.springframework.util.CollectionUtils;
 
@@ -74,6 +77,15 @@ public class PushMessage extends RPCProto {
         entries.add(new Entry(msgId, content, sendCount));
     }
 
+    /**
+     * 以ByteBuf作为消息内容, 比如转发时取自另一个proto的getPayload(), 不复制到堆上
+     * payload的一个引用交给本proto, 在本proto的引用计数归零时释放
+     */
+    public void add(long msgId, ByteBuf payload, byte sendCount) {
+        setRetainedSlice(true);
+        entries.add(new Entry(msgId, payload, sendCount));
+    }
+
     public String getClientId() {
         return clientId.getValue();
     }
@@ -98,12 +110,20 @@ public class PushMessage extends RPCProto {
         return CollectionUtils.isEmpty(entries);
     }
 
+    @Override
+    protected void deallocate() {
+        entries.forEach(Entry::deallocate);
+    }
+
     public class Entry {
 
         long msgId;
 
         byte[] content;
 
+        /* 以retained slice方式解码时的消息内容, 引用入站帧 */
+        ByteBuf payload;
+
         byte sendCount = 0;
 
         Entry(long msgId, byte[] content, byte sendCount) {
@@ -112,25 +132,59 @@ public class PushMessage extends RPCProto {
             this.sendCount = sendCount;
         }
 
+        Entry(long msgId, ByteBuf payload, byte sendCount) {
+            this.msgId = msgId;
+            this.payload = payload;
+            this.sendCount = sendCount;
+        }
+
         Entry(ByteBuf buf) {
             read(buf);
         }
 
         void write(ByteBuf buf) {
+            if (payload == null && content == null) {
+                throw new IllegalReferenceCountException(0);
+            }
+
             buf.writeLong(msgId);
-            buf.writeInt(content.length);
-            buf.writeBytes(content);
+
+            if (payload != null) {
+                buf.writeInt(payload.readableBytes());
+                buf.writeBytes(payload, payload.readerIndex(), payload.readableBytes());
+            } else {
+                buf.writeInt(content.length);
+                buf.writeBytes(content);
+            }
+
             buf.writeByte(sendCount);
         }
 
         void read(ByteBuf buf) {
             msgId = buf.readLong();
-            content = readBytes(buf, buf.readInt());
+
+            if (isRetainedSlice()) {
+                payload = readSlice(buf, buf.readInt());
+            } else {
+                content = readBytes(buf, buf.readInt());
+            }
+
             sendCount = buf.readByte();
         }
 
+        void deallocate() {
+            if (payload != null) {
+                payload.release();
+                payload = null;
+            }
+        }
+
         int length() {
-            return 8 + 4 + content.length + 1;
+            return 8 + 4 + contentLength() + 1;
+        }
+
+        public int contentLength() {
+            return payload != null ? payload.readableBytes() : content.length;
         }
 
         public long getMsgId() {
@@ -141,10 +195,28 @@ public class PushMessage extends RPCProto {
             this.msgId = msgId;
         }
 
+        /**
+         * 以retained slice方式解码时, 首次调用会把内容复制到堆上
+         */
         public byte[] getContent() {
+            if (content == null && payload != null) {
+                content = ByteBufUtil.getBytes(payload);
+            }
             return content;
         }
 
+        /**
+         * 消息内容的ByteBuf视图, 以retained slice方式解码时为入站帧的retained duplicate, 不复制内容,
+         * 返回的ByteBuf由调用方负责release(或者交给add(long, ByteBuf, byte)等方法)
+         */
+        public ByteBuf getPayload() {
+            return payload != null ? payload.retainedDuplicate() : Unpooled.wrappedBuffer(content);
+        }
+
+        public boolean isSliced() {
+            return payload != null;
+        }
+
         public byte getSendCount() {
             return sendCount;
         }
@@ -1,9 +1,10 @@
 package com.xhtech.hermes.rpc.net.proto;
 
 import com.xhtech.hermes.core.netty.proto.AbstractProto;
+import com.xhtech.hermes.core.netty.proto.Correlated;
 import io.netty.buffer.ByteBuf;
 
-public abstract class RPCProto extends AbstractProto {
+public abstract class RPCProto extends AbstractProto implements Correlated {
 
     /** 协议header长度 */
     public static final int HEADER_LENGTH = 6;
@@ -15,7 +16,22 @@ public abstract class RPCProto extends AbstractProto {
     public static final int HEADER_LENGTH_POS = 2;
 
     /** 协议版本 */
-    protected byte version = 0x01;
+    public static final byte VERSION = 0x01;
+
+    /** 扩展协议版本, header在length之后追加requestId(4)和type(1) */
+    public static final byte EXTENDED_VERSION = 0x02;
+
+    /** 扩展协议header长度 */
+    public static final int EXTENDED_HEADER_LENGTH = HEADER_LENGTH + 5;
+
+    /** 请求类型 */
+    public static final byte REQUEST_TYPE = 0x0;
+
+    /** 响应类型 */
+    public static final byte RESPONSE_TYPE = 0x1;
+
+    /** 协议版本 */
+    protected byte version = VERSION;
 
     /** 协议指令 */
     protected byte cmd;
@@ -23,22 +39,87 @@ public abstract class RPCProto extends AbstractProto {
     /** 数据长度 */
     protected int length;
 
+    /** 请求ID, 0表示不携带扩展header */
+    protected int requestId;
+
+    /** 请求/响应类型(仅扩展header) */
+    protected byte type = REQUEST_TYPE;
+
     public RPCProto() {
     }
 
     public void writeHeader(ByteBuf buf) {
+        writeHeader(buf, available());
+    }
+
+    /**
+     * 写出version字段, version与header格式一致: 携带requestId时为EXTENDED_VERSION, 否则为VERSION
+     */
+    @Override
+    public void writeHeader(ByteBuf buf, int available) {
+        version = version();
+
         buf.writeByte(version);
         buf.writeByte(getCmd());
-        buf.writeInt(available());
+        buf.writeInt(available);
+
+        if (version == EXTENDED_VERSION) {
+            buf.writeInt(requestId);
+            buf.writeByte(type);
+        }
+    }
+
+    private byte version() {
+        return requestId != 0 ? EXTENDED_VERSION : VERSION;
     }
 
     public void readHeader(ByteBuf buf) {
         version = buf.readByte();
         cmd = buf.readByte();
         length = buf.readInt();
+
+        if (version == EXTENDED_VERSION) {
+            requestId = buf.readInt();
+            type = buf.readByte();
+        }
+    }
+
+    public int headerLength() {
+        return requestId != 0 ? EXTENDED_HEADER_LENGTH : HEADER_LENGTH;
     }
 
     public int available() {
-        return HEADER_LENGTH + bodyLength();
+        return headerLength() + bodyLength();
+    }
+
+    /**
+     * 作为request的响应, 回写request的requestId
+     */
+    public RPCProto reply(RPCProto request) {
+        this.requestId = request.requestId;
+        this.version = version();
+        this.type = RESPONSE_TYPE;
+        return this;
+    }
+
+    @Override
+    public int getRequestId() {
+        return requestId;
+    }
+
+    @Override
+    public void setRequestId(int requestId) {
+        this.requestId = requestId;
+        this.version = version();
+    }
+
+    @Override
+    public boolean isResponse() {
+        return type == RESPONSE_TYPE;
+    }
+
+    @Override
+    public void setResponse(boolean response) {
+        this.type = response ? RESPONSE_TYPE : REQUEST_TYPE;
     }
 }
@@ -0,0 +1,113 @@
+package com.xhtech.hermes.rpc.dto;
+
+import com.xhtech.hermes.core.netty.channel.OutboundQueueHandler;
+import com.xhtech.hermes.core.netty.channel.OutboundQueueHandler.OverflowPolicy;
+import com.xhtech.hermes.rpc.net.codec.RPCEncode;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.WriteBufferWaterMark;
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.*;
+
+public class PushMessageTest {
+
+    private static final byte[] CONTENT = "hello device".getBytes(StandardCharsets.UTF_8);
+
+    /**
+     * 模拟decoder: 以retained slice方式解码, 解码后释放入站帧自身的引用
+     */
+    private PushMessage decode(ByteBuf frame) {
+        PushMessage message = new PushMessage();
+        message.setRetainedSlice(true);
+        message.decode(frame);
+        frame.release();
+        return message;
+    }
+
+    @Test
+    public void forwardAfterHandlerReturns() {
+        byte[] bytes = ByteBufUtil.getBytes(new PushMessage("c1", 1L, CONTENT, 1).encode());
+        ByteBuf frame = Unpooled.copiedBuffer(bytes);
+        PushMessage message = decode(frame);
+        assertTrue(message.entries().get(0).isSliced());
+
+        /* handler中转发前retain, handler返回后AbstractHandler释放自己的引用 */
+        PushMessage forward = (PushMessage) message.retain();
+        message.release();
+        assertEquals(1, frame.refCnt());
+
+        EmbeddedChannel channel = new EmbeddedChannel(new RPCEncode());
+        assertTrue(channel.writeOutbound(forward));
+
+        ByteBuf out = channel.readOutbound();
+        assertArrayEquals(bytes, ByteBufUtil.getBytes(out));
+        out.release();
+
+        assertEquals(0, forward.refCnt());
+        assertEquals(0, frame.refCnt());
+        assertFalse(channel.finish());
+    }
+
+    @Test
+    public void dropOnSlowChannel() {
+        byte[] bytes = ByteBufUtil.getBytes(new PushMessage("c1", 1L, CONTENT, 1).encode());
+        ByteBuf frame = Unpooled.copiedBuffer(bytes);
+        PushMessage message = decode(frame);
+
+        /* 写给两个channel, 每次write各持有一个引用 */
+        PushMessage toSlow = (PushMessage) message.retain();
+        PushMessage toFast = (PushMessage) message.retain();
+        message.release();
+
+        EmbeddedChannel slow = new EmbeddedChannel(new RPCEncode(), new OutboundQueueHandler(1, OverflowPolicy.DROP_OLDEST, null));
+        slow.config().setWriteBufferWaterMark(new WriteBufferWaterMark(8, 16));
+        slow.write(Unpooled.buffer().writeZero(1024));
+        assertFalse(slow.isWritable());
+
+        /* 慢速channel的队列满, 丢弃的消息只释放它自己的引用 */
+        slow.write(toSlow);
+        slow.write(new PushMessage("c2", 2L, CONTENT, 1));
+        assertEquals(1, toFast.refCnt());
+
+        EmbeddedChannel fast = new EmbeddedChannel(new RPCEncode());
+        assertTrue(fast.writeOutbound(toFast));
+
+        ByteBuf out = fast.readOutbound();
+        assertArrayEquals(bytes, ByteBufUtil.getBytes(out));
+        out.release();
+
+        assertEquals(0, frame.refCnt());
+        assertFalse(fast.finish());
+        slow.finishAndReleaseAll();
+    }
+
+    @Test
+    public void relayPayload() {
+        ByteBuf frame = Unpooled.copiedBuffer(new PushMessage("c1", 1L, CONTENT, 1).encode());
+        PushMessage message = decode(frame);
+
+        PushMessage relay = new PushMessage("c2");
+        relay.add(2L, message.entries().get(0).getPayload(), (byte) 3);
+        message.release();
+        assertEquals(1, frame.refCnt());
+
+        EmbeddedChannel channel = new EmbeddedChannel(new RPCEncode());
+        assertTrue(channel.writeOutbound(relay));
+        assertEquals(0, frame.refCnt());
+
+        ByteBuf out = channel.readOutbound();
+        PushMessage decoded = new PushMessage();
+        decoded.decode(out);
+        out.release();
+
+        assertEquals("c2", decoded.getClientId());
+        assertEquals(2L, decoded.entries().get(0).getMsgId());
+        assertArrayEquals(CONTENT, decoded.entries().get(0).getContent());
+        assertFalse(channel.finish());
+    }
+}